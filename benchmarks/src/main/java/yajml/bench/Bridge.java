@@ -0,0 +1,39 @@
+package yajml.bench;
+
+import org.luaj.vm2.Globals;
+import org.luaj.vm2.LuaValue;
+import org.luaj.vm2.Varargs;
+import org.luaj.vm2.lib.jse.JsePlatform;
+
+// Lua globals with the loader's jpexs library, set up the way Main does it. The loader lives
+// in the default package, which named packages cannot import, so it is reached reflectively.
+final class Bridge {
+    private Bridge() {
+    }
+
+    static Globals globals() {
+        Globals globals = JsePlatform.standardGlobals();
+        try {
+            Class<?> library = Class.forName("Main$jpexsAutoLib");
+            globals.load((LuaValue) library.getConstructor(Globals.class).newInstance(globals));
+        } catch (ReflectiveOperationException e) {
+            throw new IllegalStateException("yajml-loader is not on the class path", e);
+        }
+        return globals;
+    }
+
+    // Run chunk with args as ... and return the function it returns; benchmarks call only that
+    static LuaValue function(Globals globals, String chunk, LuaValue... args) {
+        Varargs result = globals.load(chunk, "=bench").invoke(LuaValue.varargsOf(args));
+        LuaValue function = result.arg1();
+        if (!function.isfunction()) {
+            throw new IllegalStateException("Benchmark chunk must return a function: " + chunk);
+        }
+        return function;
+    }
+
+    // A Fixture instance created through the bridge, so it carries the loader's metatable
+    static LuaValue fixture(Globals globals, int size) {
+        return globals.load("return jpexs.import('yajml.bench.Fixture').new(...)", "=fixture").call(LuaValue.valueOf(size));
+    }
+}
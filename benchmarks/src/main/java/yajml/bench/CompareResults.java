@@ -0,0 +1,101 @@
+package yajml.bench;
+
+import com.google.gson.JsonArray;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
+import java.io.IOException;
+import java.io.Reader;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.TreeMap;
+
+// Compares two JMH JSON result files (-rf json) and fails when a benchmark got slower than
+// the baseline by more than the threshold, for CI:
+//   java -cp benchmarks.jar yajml.bench.CompareResults baseline.json results.json [--threshold 0.15]
+// Only benchmarks present in both files are compared; scores are assumed to come from
+// comparable hardware, so the baseline should be produced by the same CI runner.
+public final class CompareResults {
+    private CompareResults() {
+    }
+
+    public static void main(String[] args) throws IOException {
+        double threshold = 0.15;
+        String baseline = null;
+        String current = null;
+        for (int i = 0; i < args.length; i++) {
+            if (args[i].equals("--threshold") && i + 1 < args.length) {
+                threshold = Double.parseDouble(args[++i]);
+            } else if (baseline == null) {
+                baseline = args[i];
+            } else {
+                current = args[i];
+            }
+        }
+        if (baseline == null || current == null) {
+            System.err.println("Usage: CompareResults baseline.json results.json [--threshold 0.15]");
+            System.exit(2);
+        }
+
+        Map<String, Score> before = read(baseline);
+        Map<String, Score> after = read(current);
+        int regressions = 0;
+
+        System.out.println(String.format("%-70s %14s %14s %9s", "BENCHMARK", "BASELINE", "CURRENT", "CHANGE"));
+        for (Map.Entry<String, Score> entry : new TreeMap<>(after).entrySet()) {
+            Score old = before.get(entry.getKey());
+            Score now = entry.getValue();
+            if (old == null) {
+                System.out.println(String.format("%-70s %14s %14.3f %9s", entry.getKey(), "-", now.value, "new"));
+                continue;
+            }
+            // Positive change means worse, whichever way the mode counts
+            double change = now.higherIsBetter ? (old.value - now.value) / old.value : (now.value - old.value) / old.value;
+            boolean regressed = change > threshold;
+            if (regressed) {
+                regressions++;
+            }
+            System.out.println(String.format("%-70s %14.3f %14.3f %+8.1f%%%s", entry.getKey(), old.value, now.value,
+                    change * 100, regressed ? "  REGRESSION" : ""));
+        }
+
+        System.out.println();
+        System.out.println(String.format("%d benchmarks compared, %d slower than the baseline by more than %.0f%%",
+                after.size(), regressions, threshold * 100));
+        System.exit(regressions == 0 ? 0 : 1);
+    }
+
+    private static final class Score {
+        final double value;
+        final boolean higherIsBetter;
+
+        Score(double value, boolean higherIsBetter) {
+            this.value = value;
+            this.higherIsBetter = higherIsBetter;
+        }
+    }
+
+    // Benchmark name plus its parameters -> primary score
+    private static Map<String, Score> read(String file) throws IOException {
+        Map<String, Score> scores = new LinkedHashMap<>();
+        try (Reader reader = Files.newBufferedReader(Paths.get(file))) {
+            JsonArray results = JsonParser.parseReader(reader).getAsJsonArray();
+            for (JsonElement element : results) {
+                JsonObject result = element.getAsJsonObject();
+                StringBuilder key = new StringBuilder(result.get("benchmark").getAsString());
+                JsonObject params = result.getAsJsonObject("params");
+                if (params != null) {
+                    for (String name : new TreeMap<>(params.asMap()).keySet()) {
+                        key.append(' ').append(name).append('=').append(params.get(name).getAsString());
+                    }
+                }
+                String mode = result.get("mode").getAsString();
+                double value = result.getAsJsonObject("primaryMetric").get("score").getAsDouble();
+                scores.put(key.toString(), new Score(value, mode.equals("thrpt")));
+            }
+        }
+        return scores;
+    }
+}
@@ -0,0 +1,50 @@
+package yajml.bench;
+
+import java.util.concurrent.TimeUnit;
+import org.luaj.vm2.Globals;
+import org.luaj.vm2.LuaValue;
+import org.openjdk.jmh.annotations.*;
+
+// convertLuaToJava for Lua tables passed where Java wants an array, a List or a Map
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ConvertBenchmark {
+    @Param({"100", "10000"})
+    public int size;
+
+    private LuaValue toArray;
+    private LuaValue toList;
+    private LuaValue toMap;
+
+    @Setup
+    public void setup() {
+        Globals globals = Bridge.globals();
+        LuaValue fixture = Bridge.fixture(globals, 0);
+        String tables = "local o, n = ...\n"
+                + "local t, m = {}, {}\n"
+                + "for i = 1, n do t[i] = i; m['k' .. i] = i end\n";
+        LuaValue n = LuaValue.valueOf(size);
+        toArray = Bridge.function(globals, tables + "return function() return o.sumArray(t) end", fixture, n);
+        toList = Bridge.function(globals, tables + "return function() return o.sumList(t) end", fixture, n);
+        toMap = Bridge.function(globals, tables + "return function() return o.sizeMap(m) end", fixture, n);
+    }
+
+    @Benchmark
+    public LuaValue tableToArray() {
+        return toArray.call();
+    }
+
+    @Benchmark
+    public LuaValue tableToList() {
+        return toList.call();
+    }
+
+    @Benchmark
+    public LuaValue tableToMap() {
+        return toMap.call();
+    }
+}
@@ -0,0 +1,80 @@
+package yajml.bench;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+// Java object the benchmarks reach through the bridge: public fields, getters, overloads, and
+// large collections built once so only wrapping and conversion are measured
+public class Fixture {
+    public int count = 42;
+    public String name = "fixture";
+
+    private final List<Integer> list;
+    private final int[] array;
+    private final Map<String, Integer> map;
+
+    public Fixture(int size) {
+        list = new ArrayList<>(size);
+        array = new int[size];
+        map = new HashMap<>();
+        for (int i = 0; i < size; i++) {
+            list.add(i);
+            array[i] = i;
+            map.put("k" + i, i);
+        }
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public int add(int a, int b) {
+        return a + b;
+    }
+
+    public double add(double a, double b) {
+        return a + b;
+    }
+
+    public String add(String a, String b) {
+        return a + b;
+    }
+
+    public Fixture add(Fixture a, Fixture b) {
+        return a.count >= b.count ? a : b;
+    }
+
+    public List<Integer> getList() {
+        return list;
+    }
+
+    public int[] getArray() {
+        return array;
+    }
+
+    public Map<String, Integer> getMap() {
+        return map;
+    }
+
+    public long sumArray(int[] values) {
+        long sum = 0;
+        for (int value : values) {
+            sum += value;
+        }
+        return sum;
+    }
+
+    public long sumList(List<?> values) {
+        long sum = 0;
+        for (Object value : values) {
+            sum += ((Number) value).longValue();
+        }
+        return sum;
+    }
+
+    public int sizeMap(Map<?, ?> values) {
+        return values.size();
+    }
+}
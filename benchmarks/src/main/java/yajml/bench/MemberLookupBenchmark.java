@@ -0,0 +1,51 @@
+package yajml.bench;
+
+import java.util.concurrent.TimeUnit;
+import org.luaj.vm2.Globals;
+import org.luaj.vm2.LuaValue;
+import org.openjdk.jmh.annotations.*;
+
+// __index on a bound object: public field, method lookup (which builds a method wrapper),
+// getter call, and a miss
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class MemberLookupBenchmark {
+    private LuaValue field;
+    private LuaValue method;
+    private LuaValue getter;
+    private LuaValue missing;
+
+    @Setup
+    public void setup() {
+        Globals globals = Bridge.globals();
+        LuaValue fixture = Bridge.fixture(globals, 0);
+        field = Bridge.function(globals, "local o = ... return function() return o.count end", fixture);
+        method = Bridge.function(globals, "local o = ... return function() return o.getName end", fixture);
+        getter = Bridge.function(globals, "local o = ... return function() return o.getName() end", fixture);
+        missing = Bridge.function(globals, "local o = ... return function() return o.doesNotExist end", fixture);
+    }
+
+    @Benchmark
+    public LuaValue fieldRead() {
+        return field.call();
+    }
+
+    @Benchmark
+    public LuaValue methodLookup() {
+        return method.call();
+    }
+
+    @Benchmark
+    public LuaValue getterCall() {
+        return getter.call();
+    }
+
+    @Benchmark
+    public LuaValue missingMember() {
+        return missing.call();
+    }
+}
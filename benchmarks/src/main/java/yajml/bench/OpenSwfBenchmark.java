@@ -0,0 +1,57 @@
+package yajml.bench;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.TimeUnit;
+import org.luaj.vm2.Globals;
+import org.luaj.vm2.LuaValue;
+import org.openjdk.jmh.annotations.*;
+
+// jpexs.openSWF + closeSWF on generated SWFs, once parsing every time and once with the
+// process-wide SWF cache handing back the idle parse
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class OpenSwfBenchmark {
+    @Param({"100", "2000"})
+    public int tags;
+
+    @Param({"false", "true"})
+    public boolean compressed;
+
+    private Path directory;
+    private LuaValue open;
+
+    @Setup
+    public void setup() throws IOException {
+        directory = Files.createTempDirectory("yajml-bench");
+        Path swf = directory.resolve("fixture.swf");
+        SwfFixtures.write(swf, tags, compressed);
+
+        Globals globals = Bridge.globals();
+        open = Bridge.function(globals, "local path = ... return function()\n"
+                + "  local swf = jpexs.openSWF(path) jpexs.closeSWF(swf) return swf\n"
+                + "end", LuaValue.valueOf(swf.toString()));
+    }
+
+    @TearDown
+    public void tearDown() throws IOException {
+        Files.deleteIfExists(directory.resolve("fixture.swf"));
+        Files.deleteIfExists(directory);
+    }
+
+    @Benchmark
+    @Fork(value = 1, jvmArgsAppend = "-Dyajml.swfCache.mb=0")
+    public LuaValue parse() {
+        return open.call();
+    }
+
+    @Benchmark
+    public LuaValue cached() {
+        return open.call();
+    }
+}
@@ -0,0 +1,61 @@
+package yajml.bench;
+
+import java.util.concurrent.TimeUnit;
+import org.luaj.vm2.Globals;
+import org.luaj.vm2.LuaValue;
+import org.openjdk.jmh.annotations.*;
+
+// Calls through MethodWrapper to an overloaded method: one argument signature per call
+// site, and one site cycling through all four so the per-signature cache is exercised
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class OverloadDispatchBenchmark {
+    private LuaValue ints;
+    private LuaValue doubles;
+    private LuaValue strings;
+    private LuaValue objects;
+    private LuaValue mixed;
+
+    @Setup
+    public void setup() {
+        Globals globals = Bridge.globals();
+        LuaValue fixture = Bridge.fixture(globals, 0);
+        ints = Bridge.function(globals, "local o = ... return function() return o.add(1, 2) end", fixture);
+        doubles = Bridge.function(globals, "local o = ... return function() return o.add(1.5, 2.5) end", fixture);
+        strings = Bridge.function(globals, "local o = ... return function() return o.add('a', 'b') end", fixture);
+        objects = Bridge.function(globals, "local o = ... return function() return o.add(o, o) end", fixture);
+        mixed = Bridge.function(globals, "local o = ... return function()\n"
+                + "  o.add(1, 2) o.add(1.5, 2.5) o.add('a', 'b') return o.add(o, o)\n"
+                + "end", fixture);
+    }
+
+    @Benchmark
+    public LuaValue intOverload() {
+        return ints.call();
+    }
+
+    @Benchmark
+    public LuaValue doubleOverload() {
+        return doubles.call();
+    }
+
+    @Benchmark
+    public LuaValue stringOverload() {
+        return strings.call();
+    }
+
+    @Benchmark
+    public LuaValue objectOverload() {
+        return objects.call();
+    }
+
+    // Four calls per invocation
+    @Benchmark
+    public LuaValue polymorphicSite() {
+        return mixed.call();
+    }
+}
@@ -0,0 +1,91 @@
+package yajml.bench;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Random;
+import java.util.zip.DeflaterOutputStream;
+
+// Writes small but valid SWF files: FileAttributes, SetBackgroundColor, a number of
+// DefineBinaryData tags with fixed pseudo-random payloads, ShowFrame and End
+final class SwfFixtures {
+    private static final int PAYLOAD = 512;
+
+    private SwfFixtures() {
+    }
+
+    static void write(Path file, int binaryTags, boolean compressed) throws IOException {
+        ByteArrayOutputStream body = new ByteArrayOutputStream();
+        // 550x400 stage in twips: RECT with 15-bit fields
+        writeRect(body, 0, 11000, 0, 8000);
+        writeU16(body, 24 << 8);
+        writeU16(body, 1);
+
+        writeTag(body, 69, new byte[]{0, 0, 0, 0});
+        writeTag(body, 9, new byte[]{(byte) 0xFF, (byte) 0xFF, (byte) 0xFF});
+        Random random = new Random(binaryTags);
+        for (int id = 1; id <= binaryTags; id++) {
+            byte[] data = new byte[6 + PAYLOAD];
+            data[0] = (byte) id;
+            data[1] = (byte) (id >> 8);
+            byte[] payload = new byte[PAYLOAD];
+            random.nextBytes(payload);
+            System.arraycopy(payload, 0, data, 6, PAYLOAD);
+            writeTag(body, 87, data);
+        }
+        writeTag(body, 1, new byte[0]);
+        writeTag(body, 0, new byte[0]);
+
+        byte[] bytes = body.toByteArray();
+        long length = 8L + bytes.length;
+        try (OutputStream out = Files.newOutputStream(file)) {
+            out.write(new byte[]{(byte) (compressed ? 'C' : 'F'), 'W', 'S', 10,
+                    (byte) length, (byte) (length >> 8), (byte) (length >> 16), (byte) (length >> 24)});
+            if (compressed) {
+                try (DeflaterOutputStream deflated = new DeflaterOutputStream(out)) {
+                    deflated.write(bytes);
+                }
+            } else {
+                out.write(bytes);
+            }
+        }
+    }
+
+    // Long tag headers throughout, which every reader accepts
+    private static void writeTag(ByteArrayOutputStream out, int code, byte[] data) {
+        writeU16(out, code << 6 | 0x3F);
+        writeU16(out, data.length);
+        writeU16(out, data.length >>> 16);
+        out.write(data, 0, data.length);
+    }
+
+    private static void writeRect(ByteArrayOutputStream out, int xMin, int xMax, int yMin, int yMax) {
+        int bits = 15;
+        int[] fields = {xMin, xMax, yMin, yMax};
+        int total = 5 + 4 * bits;
+        byte[] packed = new byte[(total + 7) / 8];
+        int position = 0;
+        position = writeBits(packed, position, bits, 5);
+        for (int field : fields) {
+            position = writeBits(packed, position, field, bits);
+        }
+        out.write(packed, 0, packed.length);
+    }
+
+    // Big-endian bit packing as SWF uses for RECT
+    private static int writeBits(byte[] packed, int position, int value, int count) {
+        for (int i = count - 1; i >= 0; i--, position++) {
+            if ((value >>> i & 1) != 0) {
+                packed[position / 8] |= (byte) (0x80 >>> (position % 8));
+            }
+        }
+        return position;
+    }
+
+    private static void writeU16(ByteArrayOutputStream out, int value) {
+        out.write(value);
+        out.write(value >>> 8);
+    }
+}
@@ -0,0 +1,65 @@
+package yajml.bench;
+
+import java.util.concurrent.TimeUnit;
+import org.luaj.vm2.Globals;
+import org.luaj.vm2.LuaValue;
+import org.openjdk.jmh.annotations.*;
+
+// wrapObject on large collections and arrays: handing one to Lua should not depend on its
+// size, while reading every element is the per-element proxy cost
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class WrapBenchmark {
+    @Param({"1000", "100000"})
+    public int size;
+
+    private LuaValue wrapList;
+    private LuaValue wrapArray;
+    private LuaValue wrapMap;
+    private LuaValue readList;
+    private LuaValue readArray;
+
+    @Setup
+    public void setup() {
+        Globals globals = Bridge.globals();
+        LuaValue fixture = Bridge.fixture(globals, size);
+        wrapList = Bridge.function(globals, "local o = ... return function() return #o.getList() end", fixture);
+        wrapArray = Bridge.function(globals, "local o = ... return function() return #o.getArray() end", fixture);
+        wrapMap = Bridge.function(globals, "local o = ... return function() return o.getMap()['k1'] end", fixture);
+        readList = Bridge.function(globals, "local o = ... return function()\n"
+                + "  local l, s = o.getList(), 0 for i = 1, #l do s = s + l[i] end return s\n"
+                + "end", fixture);
+        readArray = Bridge.function(globals, "local o = ... return function()\n"
+                + "  local a, s = o.getArray(), 0 for i = 1, #a do s = s + a[i] end return s\n"
+                + "end", fixture);
+    }
+
+    @Benchmark
+    public LuaValue wrapList() {
+        return wrapList.call();
+    }
+
+    @Benchmark
+    public LuaValue wrapArray() {
+        return wrapArray.call();
+    }
+
+    @Benchmark
+    public LuaValue wrapMap() {
+        return wrapMap.call();
+    }
+
+    @Benchmark
+    public LuaValue readAllListElements() {
+        return readList.call();
+    }
+
+    @Benchmark
+    public LuaValue readAllArrayElements() {
+        return readArray.call();
+    }
+}
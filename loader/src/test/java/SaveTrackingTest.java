@@ -0,0 +1,136 @@
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.luaj.vm2.Globals;
+import org.luaj.vm2.LuaValue;
+
+// Edits made through objects reached from a tag must survive jpexs.saveSWF, which copies the
+// original bytes of every tag not marked modified
+class SaveTrackingTest {
+    @TempDir
+    Path dir;
+
+    @Test
+    void editThroughFindResultIsSaved() throws IOException {
+        Path input = dir.resolve("in.swf");
+        Path output = dir.resolve("out.swf");
+        Files.write(input, swfWithAbc());
+
+        LuaValue saved = run("local swf = jpexs.openSWF(...)\n"
+                + "local hit = jpexs.abc.find(swf, 'pushbyte 5').list[1]\n"
+                + "hit.body.getCode().code[hit.position].operands[1] = 9\n"
+                + "return jpexs.saveSWF(swf, select(2, ...), {compression = 'none'})", input, output);
+        assertEquals(1, saved.get("modified").toint());
+
+        assertEquals(1, run("return jpexs.abc.find(jpexs.openSWF(...), 'pushbyte 9').matches", output, null).toint());
+        assertEquals(0, run("return jpexs.abc.find(jpexs.openSWF(...), 'pushbyte 5').matches", output, null).toint());
+    }
+
+    @Test
+    void writesUnrelatedToTheSwfKeepSavesIncremental() throws IOException {
+        Path input = dir.resolve("in.swf");
+        Files.write(input, swfWithAbc());
+
+        LuaValue saved = run("local swf = jpexs.openSWF(...)\n"
+                + "local list = jpexs.newInstance('java.util.ArrayList')\n"
+                + "list.add(1)\n"
+                + "jpexs.newInstance('java.lang.StringBuilder').append('x')\n"
+                + "jpexs.import('java.lang.Math').max(1, 2)\n"
+                + "return jpexs.saveSWF(swf, select(2, ...), {compression = 'none'})", input, dir.resolve("out.swf"));
+        assertEquals(0, saved.get("modified").toint());
+    }
+
+    private static LuaValue run(String script, Path swf, Path other) {
+        Main.jpexsAutoLib lib = Main.createLibrary();
+        try {
+            Globals globals = lib.globals();
+            return globals.load(script, "test").invoke(LuaValue.varargsOf(
+                    LuaValue.valueOf(swf.toString()), other == null ? LuaValue.NIL : LuaValue.valueOf(other.toString()))).arg1();
+        } finally {
+            lib.release();
+        }
+    }
+
+    // FWS file with FileAttributes (AS3), one DoABC2 tag holding a single method body
+    // "pushbyte 5; pop; returnvoid", ShowFrame and End
+    private static byte[] swfWithAbc() {
+        ByteArrayOutputStream abc = new ByteArrayOutputStream();
+        writeU16(abc, 16);
+        writeU16(abc, 46);
+        // Empty constant pool: int, uint, double, string, namespace, ns set, multiname
+        for (int i = 0; i < 7; i++) {
+            abc.write(0);
+        }
+        // One method: no parameters, any return type, no name, no flags
+        abc.write(1);
+        abc.write(0);
+        abc.write(0);
+        abc.write(0);
+        abc.write(0);
+        // No metadata or classes; one script whose initializer is method 0, without traits
+        abc.write(0);
+        abc.write(0);
+        abc.write(1);
+        abc.write(0);
+        abc.write(0);
+        // One body for method 0: max stack, locals, scope depths, code, no exceptions or traits
+        abc.write(1);
+        abc.write(0);
+        abc.write(1);
+        abc.write(1);
+        abc.write(0);
+        abc.write(1);
+        byte[] code = {0x24, 5, 0x29, 0x47};
+        abc.write(code.length);
+        abc.write(code, 0, code.length);
+        abc.write(0);
+        abc.write(0);
+
+        ByteArrayOutputStream doAbc = new ByteArrayOutputStream();
+        writeU32(doAbc, 1);
+        doAbc.write(0);
+        byte[] abcBytes = abc.toByteArray();
+        doAbc.write(abcBytes, 0, abcBytes.length);
+
+        ByteArrayOutputStream body = new ByteArrayOutputStream();
+        // Empty frame rectangle (5 bits of zero size), 24 fps, one frame
+        body.write(0);
+        writeU16(body, 24 << 8);
+        writeU16(body, 1);
+        writeTag(body, 69, new byte[]{0x08, 0, 0, 0});
+        writeTag(body, 82, doAbc.toByteArray());
+        writeTag(body, 1, new byte[0]);
+        writeTag(body, 0, new byte[0]);
+
+        byte[] bodyBytes = body.toByteArray();
+        ByteArrayOutputStream swf = new ByteArrayOutputStream();
+        swf.write('F');
+        swf.write('W');
+        swf.write('S');
+        swf.write(10);
+        writeU32(swf, 8 + bodyBytes.length);
+        swf.write(bodyBytes, 0, bodyBytes.length);
+        return swf.toByteArray();
+    }
+
+    private static void writeTag(ByteArrayOutputStream out, int code, byte[] data) {
+        writeU16(out, code << 6 | 0x3F);
+        writeU32(out, data.length);
+        out.write(data, 0, data.length);
+    }
+
+    private static void writeU16(ByteArrayOutputStream out, int value) {
+        out.write(value & 0xFF);
+        out.write(value >>> 8 & 0xFF);
+    }
+
+    private static void writeU32(ByteArrayOutputStream out, int value) {
+        writeU16(out, value & 0xFFFF);
+        writeU16(out, value >>> 16);
+    }
+}
@@ -0,0 +1,395 @@
+import org.luaj.vm2.*;
+import org.luaj.vm2.lib.*;
+import java.util.*;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.IntStream;
+import com.jpexs.decompiler.flash.SWF;
+import com.jpexs.decompiler.flash.abc.ABC;
+import com.jpexs.decompiler.flash.abc.avm2.AVM2Code;
+import com.jpexs.decompiler.flash.abc.avm2.instructions.AVM2Instruction;
+import com.jpexs.decompiler.flash.abc.avm2.instructions.InstructionDefinition;
+import com.jpexs.decompiler.flash.abc.types.MethodBody;
+import com.jpexs.decompiler.flash.tags.ABCContainerTag;
+import com.jpexs.decompiler.flash.tags.Tag;
+
+// Bulk AVM2 find-and-replace for the jpexs.abc library. Patterns are matched in Java over
+// every method body (in parallel), so a script crosses the bridge once per call instead of
+// once per instruction. Edits go through AVM2Code's replace/insert/remove, which keep jump
+// offsets and exception ranges of the body consistent.
+//
+// Pattern syntax, instructions separated by ';' or newlines:
+//   pushbyte 5              opcode with literal operands
+//   getlex ?                any operand value
+//   callproperty $1 0       capture an operand; a later $1 must hold the same value
+//   *                       any single instruction
+// Replacements use the same syntax, where $n inserts a captured operand and %n copies the
+// n-th matched instruction unchanged.
+final class AbcPatcher {
+    private static final int LITERAL = 0;
+    private static final int ANY = 1;
+    private static final int CAPTURE = 2;
+    private static final int MAX_CAPTURES = 10;
+
+    private AbcPatcher() {
+    }
+
+    // One instruction of a pattern or replacement
+    private static final class Step {
+        // null matches any instruction
+        final InstructionDefinition definition;
+        final int[] kinds;
+        final int[] values;
+        // For replacements: copy the matched instruction with this index, or -1
+        final int copyOf;
+
+        Step(InstructionDefinition definition, int[] kinds, int[] values, int copyOf) {
+            this.definition = definition;
+            this.kinds = kinds;
+            this.values = values;
+            this.copyOf = copyOf;
+        }
+    }
+
+    // A match inside one body: start position and captured operands
+    private static final class Match {
+        final int abcIndex;
+        final int bodyIndex;
+        final MethodBody body;
+        final int position;
+        final int[] captures;
+
+        Match(int abcIndex, int bodyIndex, MethodBody body, int position, int[] captures) {
+            this.abcIndex = abcIndex;
+            this.bodyIndex = bodyIndex;
+            this.body = body;
+            this.position = position;
+            this.captures = captures;
+        }
+    }
+
+    // The jpexs.abc library
+    static LuaTable library(Main.jpexsAutoLib lib) {
+        LuaTable library = new LuaTable();
+
+        // abc.find(target, pattern [, options]) -> {matches, bodies, scanned, millis, list}
+        // Each list entry is {abc, bodyIndex, body, position, captures}; abc, bodyIndex and
+        // position are 1-based like Lua tables, so body.getCode().code[position] is the match
+        library.set("find", new ThreeArgFunction() {
+            @Override
+            public LuaValue call(LuaValue target, LuaValue pattern, LuaValue options) {
+                return run(lib, target, pattern.checkjstring(), null, options);
+            }
+        });
+
+        // abc.replace(target, pattern, replacement [, options]) -> {matches, bodies, scanned, millis}
+        library.set("replace", new VarArgFunction() {
+            @Override
+            public Varargs invoke(Varargs args) {
+                return run(lib, args.arg1(), args.checkjstring(2), args.checkjstring(3), args.arg(4));
+            }
+        });
+
+        return library;
+    }
+
+    // target is a SWF, an ABC container tag or an ABC; options.parallel = false runs single-threaded
+    private static LuaValue run(Main.jpexsAutoLib lib, LuaValue target, String patternText, String replacementText, LuaValue options) {
+        long start = System.nanoTime();
+        Step[] pattern = parse(patternText, false);
+        Step[] replacement = replacementText != null ? parse(replacementText, true) : null;
+        if (pattern.length == 0) {
+            throw new LuaError("Empty pattern");
+        }
+        if (replacement != null) {
+            checkReferences(pattern, replacement);
+        }
+        boolean parallel = !options.istable() || options.get("parallel").optboolean(true);
+
+        // Tags owning each ABC, parallel to abcs; for a bare ABC whose tag is unknown, its SWF or null
+        List<Object> owners = new ArrayList<>();
+        List<ABC> abcs = new ArrayList<>();
+        Object targetObject = target.checkuserdata();
+        if (targetObject instanceof ABC) {
+            owners.add(Main.jpexsAutoLib.ownerOf(target));
+            abcs.add((ABC) targetObject);
+        } else {
+            for (ABCContainerTag container : containers(targetObject)) {
+                owners.add(container instanceof Tag ? container : Main.jpexsAutoLib.ownerOf(target));
+                abcs.add(container.getABC());
+            }
+        }
+
+        ConcurrentLinkedQueue<Match> found = new ConcurrentLinkedQueue<>();
+        AtomicInteger scanned = new AtomicInteger();
+        AtomicInteger changedBodies = new AtomicInteger();
+        int matches = 0;
+
+        try {
+            for (int a = 0; a < abcs.size(); a++) {
+                int abcIndex = a;
+                List<MethodBody> bodies = abcs.get(a).bodies;
+                IntStream indexes = IntStream.range(0, bodies.size());
+                if (parallel) {
+                    indexes = indexes.parallel();
+                }
+
+                int abcMatches = indexes.map(b -> {
+                    MethodBody body = bodies.get(b);
+                    scanned.incrementAndGet();
+                    List<Match> bodyMatches = scan(abcIndex, b, body, pattern);
+                    if (bodyMatches.isEmpty()) {
+                        return 0;
+                    }
+                    if (replacement != null) {
+                        apply(body, bodyMatches, pattern.length, replacement);
+                        changedBodies.incrementAndGet();
+                    } else {
+                        found.addAll(bodyMatches);
+                    }
+                    return bodyMatches.size();
+                }).sum();
+
+                if (abcMatches > 0 && replacement != null) {
+                    lib.noteWrite(owners.get(a));
+                }
+                matches += abcMatches;
+            }
+        } catch (RuntimeException e) {
+            throw Main.jpexsAutoLib.bridgeError("Error patching ABC: ", e);
+        }
+
+        LuaTable report = new LuaTable();
+        report.set("matches", matches);
+        report.set("scanned", scanned.get());
+        report.set("millis", (System.nanoTime() - start) / 1e6);
+        if (replacement != null) {
+            report.set("bodies", changedBodies.get());
+        } else {
+            report.set("list", matchList(lib, found, owners));
+            report.set("bodies", (int) found.stream().map(m -> m.body).distinct().count());
+        }
+        return report;
+    }
+
+    private static List<ABCContainerTag> containers(Object target) {
+        if (target instanceof SWF) {
+            return ((SWF) target).getAbcList();
+        } else if (target instanceof ABCContainerTag) {
+            return Collections.singletonList((ABCContainerTag) target);
+        }
+        throw new LuaError("Expected a SWF, an ABC tag or an ABC, got " + target.getClass().getName());
+    }
+
+    // Non-overlapping matches, left to right
+    private static List<Match> scan(int abcIndex, int bodyIndex, MethodBody body, Step[] pattern) {
+        List<AVM2Instruction> code = body.getCode().code;
+        List<Match> matches = new ArrayList<>(0);
+        int[] captures = new int[MAX_CAPTURES];
+        boolean[] bound = new boolean[MAX_CAPTURES];
+
+        for (int i = 0; i + pattern.length <= code.size(); ) {
+            Arrays.fill(bound, false);
+            if (matchAt(code, i, pattern, captures, bound)) {
+                matches.add(new Match(abcIndex, bodyIndex, body, i, captures.clone()));
+                i += pattern.length;
+            } else {
+                i++;
+            }
+        }
+        return matches;
+    }
+
+    private static boolean matchAt(List<AVM2Instruction> code, int position, Step[] pattern, int[] captures, boolean[] bound) {
+        for (int s = 0; s < pattern.length; s++) {
+            Step step = pattern[s];
+            if (step.definition == null) {
+                continue;
+            }
+            AVM2Instruction instruction = code.get(position + s);
+            if (instruction.definition.instructionCode != step.definition.instructionCode) {
+                return false;
+            }
+            int[] operands = instruction.operands;
+            for (int o = 0; o < step.kinds.length; o++) {
+                int value = operands != null && o < operands.length ? operands[o] : 0;
+                switch (step.kinds[o]) {
+                    case LITERAL:
+                        if (value != step.values[o]) {
+                            return false;
+                        }
+                        break;
+                    case CAPTURE:
+                        int slot = step.values[o];
+                        if (bound[slot] && captures[slot] != value) {
+                            return false;
+                        }
+                        captures[slot] = value;
+                        bound[slot] = true;
+                        break;
+                    default:
+                        break;
+                }
+            }
+        }
+        return true;
+    }
+
+    // Rewrite matches back to front, so earlier positions stay valid while later code shifts
+    private static void apply(MethodBody body, List<Match> matches, int matchLength, Step[] replacement) {
+        AVM2Code code = body.getCode();
+        for (int m = matches.size() - 1; m >= 0; m--) {
+            Match match = matches.get(m);
+            int position = match.position;
+
+            // Build everything first; %n copies refer to the original instructions
+            AVM2Instruction[] emitted = new AVM2Instruction[replacement.length];
+            for (int r = 0; r < replacement.length; r++) {
+                emitted[r] = build(replacement[r], code.code, position, match.captures);
+            }
+
+            int common = Math.min(matchLength, emitted.length);
+            for (int j = 0; j < common; j++) {
+                code.replaceInstruction(position + j, emitted[j], body);
+            }
+            for (int j = matchLength - 1; j >= emitted.length; j--) {
+                code.removeInstruction(position + j, body);
+            }
+            for (int j = matchLength; j < emitted.length; j++) {
+                code.insertInstruction(position + j, emitted[j], true, body);
+            }
+        }
+        body.setCode(code);
+    }
+
+    private static AVM2Instruction build(Step step, List<AVM2Instruction> code, int position, int[] captures) {
+        if (step.copyOf >= 0) {
+            AVM2Instruction original = code.get(position + step.copyOf);
+            return new AVM2Instruction(0, original.definition, original.operands != null ? original.operands.clone() : null);
+        }
+        int[] operands = new int[step.kinds.length];
+        for (int o = 0; o < operands.length; o++) {
+            operands[o] = step.kinds[o] == CAPTURE ? captures[step.values[o]] : step.values[o];
+        }
+        return new AVM2Instruction(0, step.definition, operands);
+    }
+
+    private static LuaTable matchList(Main.jpexsAutoLib lib, Collection<Match> found, List<Object> owners) {
+        List<Match> sorted = new ArrayList<>(found);
+        sorted.sort(Comparator.comparingInt((Match m) -> m.abcIndex)
+                .thenComparingInt(m -> m.bodyIndex)
+                .thenComparingInt(m -> m.position));
+
+        LuaTable list = new LuaTable();
+        for (Match match : sorted) {
+            LuaTable entry = new LuaTable();
+            entry.set("abc", match.abcIndex + 1);
+            entry.set("bodyIndex", match.bodyIndex + 1);
+            // Edits a script makes through the body must mark its tag modified
+            entry.set("body", lib.wrapObject(match.body, owners.get(match.abcIndex)));
+            entry.set("position", match.position + 1);
+            LuaTable captures = new LuaTable();
+            for (int c = 1; c < MAX_CAPTURES; c++) {
+                captures.set(c, LuaValue.valueOf(match.captures[c]));
+            }
+            entry.set("captures", captures);
+            list.set(list.length() + 1, entry);
+        }
+        return list;
+    }
+
+    private static Step[] parse(String text, boolean replacement) {
+        List<Step> steps = new ArrayList<>();
+        for (String line : text.split("[;\n]")) {
+            String[] tokens = line.trim().split("[\\s,]+");
+            if (tokens[0].isEmpty()) {
+                continue;
+            }
+            String name = tokens[0];
+
+            if (name.equals("*")) {
+                if (replacement) {
+                    throw new LuaError("'*' is only allowed in patterns; use %n to copy a matched instruction");
+                }
+                steps.add(new Step(null, new int[0], new int[0], -1));
+                continue;
+            }
+            if (name.startsWith("%")) {
+                if (!replacement) {
+                    throw new LuaError("%n copies are only allowed in replacements");
+                }
+                steps.add(new Step(null, new int[0], new int[0], number(name.substring(1), line) - 1));
+                continue;
+            }
+
+            InstructionDefinition definition = definition(name);
+            int operandCount = tokens.length - 1;
+            if (definition.operands != null && operandCount != definition.operands.length
+                    && !(operandCount == 0 && !replacement)) {
+                throw new LuaError(name + " takes " + definition.operands.length + " operands, got " + operandCount + " in '" + line.trim() + "'");
+            }
+
+            int[] kinds = new int[operandCount];
+            int[] values = new int[operandCount];
+            for (int o = 0; o < operandCount; o++) {
+                String token = tokens[o + 1];
+                if (token.equals("?")) {
+                    if (replacement) {
+                        throw new LuaError("'?' is only allowed in patterns: '" + line.trim() + "'");
+                    }
+                    kinds[o] = ANY;
+                } else if (token.startsWith("$")) {
+                    kinds[o] = CAPTURE;
+                    values[o] = number(token.substring(1), line);
+                    if (values[o] < 1 || values[o] >= MAX_CAPTURES) {
+                        throw new LuaError("Captures are $1 to $" + (MAX_CAPTURES - 1) + ": '" + line.trim() + "'");
+                    }
+                } else {
+                    kinds[o] = LITERAL;
+                    values[o] = number(token, line);
+                }
+            }
+            steps.add(new Step(definition, kinds, values, -1));
+        }
+        return steps.toArray(new Step[0]);
+    }
+
+    // Replacements may only use captures the pattern binds and copy instructions it matches
+    private static void checkReferences(Step[] pattern, Step[] replacement) {
+        boolean[] bound = new boolean[MAX_CAPTURES];
+        for (Step step : pattern) {
+            for (int o = 0; o < step.kinds.length; o++) {
+                if (step.kinds[o] == CAPTURE) {
+                    bound[step.values[o]] = true;
+                }
+            }
+        }
+        for (Step step : replacement) {
+            if (step.copyOf >= pattern.length || step.copyOf < -1) {
+                throw new LuaError("%" + (step.copyOf + 1) + " is outside the " + pattern.length + "-instruction pattern");
+            }
+            for (int o = 0; o < step.kinds.length; o++) {
+                if (step.kinds[o] == CAPTURE && !bound[step.values[o]]) {
+                    throw new LuaError("$" + step.values[o] + " is not captured by the pattern");
+                }
+            }
+        }
+    }
+
+    private static InstructionDefinition definition(String name) {
+        for (InstructionDefinition definition : AVM2Code.instructionSet) {
+            if (definition != null && definition.instructionName.equalsIgnoreCase(name)) {
+                return definition;
+            }
+        }
+        throw new LuaError("Unknown AVM2 instruction: " + name);
+    }
+
+    private static int number(String token, String line) {
+        try {
+            return token.startsWith("0x") ? Integer.parseInt(token.substring(2), 16) : Integer.parseInt(token);
+        } catch (NumberFormatException e) {
+            throw new LuaError("Bad operand '" + token + "' in '" + line.trim() + "'");
+        }
+    }
+}
@@ -0,0 +1,405 @@
+import org.luaj.vm2.*;
+import org.luaj.vm2.lib.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
+import java.util.function.Function;
+import com.jpexs.decompiler.flash.SWF;
+import com.jpexs.decompiler.flash.tags.Tag;
+
+// Asynchronous work for scripts. Blocking Java work (parsing a SWF, a bridged JPEXS call) runs
+// on a virtual thread per job and comes back as a future; Lua functions run as tasks on
+// coroutines that suspend while they await futures. Lua itself never leaves the script's
+// threads, so virtual threads only ever run Java code and never wait on a suspended coroutine.
+// Results are wrapped for Lua when awaited, on the Lua thread, since wrapping isn't thread-safe.
+//
+//   local a, b = jpexs.openSWFAsync("a.swf"), jpexs.openSWFAsync("b.swf")
+//   local swfA, swfB = jpexs.await(a, b)
+//   local export = jpexs.async(exporter.exportImages, handler, "out", swfA, settings)
+//   local task = jpexs.async(function(path) return jpexs.await(jpexs.openSWFAsync(path)) end, "c.swf")
+//   task:await()
+//
+// Arguments to an async Java call are converted on its virtual thread, so tables passed to one
+// must not be changed until it is awaited, and Lua functions can't be passed at all. saveSWF
+// waits for the async calls made on that SWF, and release for all of them. Tasks still
+// awaiting when the script ends are unwound with an error by release, and SWFs opened
+// asynchronously but never awaited go back to SwfCache.
+final class AsyncTasks {
+    private static final ExecutorService VIRTUAL = Executors.newVirtualThreadPerTaskExecutor();
+
+    private final Main.jpexsAutoLib lib;
+    private final Globals globals;
+    private final LuaTable futureMeta = new LuaTable();
+    // Unfinished tasks by the coroutine they run on; Lua thread only
+    private final Map<LuaThread, Task> tasks = new IdentityHashMap<>();
+    // One permit per finished virtual job, so an idle await wakes up when there may be progress
+    private final Semaphore completions = new Semaphore(0);
+    private final AtomicInteger inFlight = new AtomicInteger();
+    // Jobs whose result Lua must take over or hand back through discard; Lua thread only
+    private final List<Pending> unclaimed = new ArrayList<>();
+    // Async Java calls by the SWF their writes were attributed to; Lua thread only
+    private final Map<Pending, SWF> calls = new IdentityHashMap<>();
+
+    // A result that isn't there yet; toLua runs on the Lua thread once, when first awaited
+    private static final class Pending {
+        final CompletableFuture<Object> future = new CompletableFuture<>();
+        final Function<Object, Varargs> toLua;
+        // Failures become results instead of errors when set, as for openSWF
+        final Function<Throwable, Varargs> onError;
+        // Gives back a result toLua will never see, as when the future is cancelled
+        final Consumer<Object> discard;
+        // Done once a virtual job has returned, even if the future was cancelled first
+        final CompletableFuture<Void> finished = new CompletableFuture<>();
+        Varargs values;
+
+        Pending(Function<Object, Varargs> toLua, Function<Throwable, Varargs> onError) {
+            this(toLua, onError, null);
+        }
+
+        Pending(Function<Object, Varargs> toLua, Function<Throwable, Varargs> onError, Consumer<Object> discard) {
+            this.toLua = toLua;
+            this.onError = onError;
+            this.discard = discard;
+        }
+    }
+
+    private static final class Task {
+        final LuaThread coroutine;
+        final Pending result = new Pending(v -> (Varargs) v, null);
+        // Futures the task is awaiting, or null if it yielded on its own
+        List<Pending> waitingOn;
+        // Set before resuming a task only to unwind it
+        boolean abandoned;
+
+        Task(LuaThread coroutine) {
+            this.coroutine = coroutine;
+        }
+    }
+
+    private AsyncTasks(Main.jpexsAutoLib lib) {
+        this.lib = lib;
+        this.globals = lib.globals();
+    }
+
+    static AsyncTasks install(Main.jpexsAutoLib lib, LuaTable library) {
+        AsyncTasks async = new AsyncTasks(lib);
+        async.futureMeta.set(LuaValue.INDEX, async.futureMethods());
+        async.futureMeta.set(LuaValue.TOSTRING, new OneArgFunction() {
+            @Override
+            public LuaValue call(LuaValue self) {
+                return LuaValue.valueOf(((Pending) self.touserdata()).future.isDone() ? "future (done)" : "future (pending)");
+            }
+        });
+
+        // jpexs.openSWFAsync(path): openSWF, parsing on a virtual thread
+        library.set("openSWFAsync", new OneArgFunction() {
+            @Override
+            public LuaValue call(LuaValue arg) {
+                String filePath = lib.resolve(arg.checkjstring());
+                SWF shared = lib.sharedSwf(filePath);
+                if (shared != null) {
+                    Pending done = new Pending(v -> lib.wrapObject(v), null);
+                    done.future.complete(shared);
+                    return async.userdata(done);
+                }
+                return async.userdata(async.submit(() -> SwfCache.open(filePath), v -> lib.opened((SwfCache.Handle) v),
+                        lib::openFailed, v -> SwfCache.release((SwfCache.Handle) v, true)));
+            }
+        });
+
+        // jpexs.async(fn, ...): a bridged Java method runs on a virtual thread, a Lua function as a task
+        library.set("async", new VarArgFunction() {
+            @Override
+            public Varargs invoke(Varargs args) {
+                LuaValue fn = args.checkfunction(1);
+                Varargs rest = args.subargs(2);
+                if (fn instanceof Main.jpexsAutoLib.MethodWrapper) {
+                    return async.callJava((Main.jpexsAutoLib.MethodWrapper) fn, rest);
+                }
+                return async.start(fn, rest);
+            }
+        });
+
+        // jpexs.await(f1, f2, ...) or jpexs.await({f1, f2, ...}): the first result of each,
+        // or every result of a lone future; values that aren't futures are passed through
+        library.set("await", new VarArgFunction() {
+            @Override
+            public Varargs invoke(Varargs args) {
+                if (args.narg() == 1 && args.arg1().istable()) {
+                    LuaTable list = args.checktable(1);
+                    LuaValue[] values = new LuaValue[list.length()];
+                    for (int i = 0; i < values.length; i++) {
+                        values[i] = list.get(i + 1);
+                    }
+                    return LuaValue.listOf(async.awaitAll(values));
+                }
+                if (args.narg() == 1) {
+                    Pending pending = pendingOf(args.arg1());
+                    return pending == null ? args.arg1() : async.await(pending);
+                }
+                LuaValue[] values = new LuaValue[args.narg()];
+                for (int i = 0; i < values.length; i++) {
+                    values[i] = args.arg(i + 1);
+                }
+                return LuaValue.varargsOf(async.awaitAll(values));
+            }
+        });
+        return async;
+    }
+
+    // future:await(), future:isDone(), future:cancel()
+    private LuaTable futureMethods() {
+        LuaTable methods = new LuaTable();
+        methods.set("await", new VarArgFunction() {
+            @Override
+            public Varargs invoke(Varargs args) {
+                return await(checkPending(args.arg1()));
+            }
+        });
+        methods.set("isDone", new OneArgFunction() {
+            @Override
+            public LuaValue call(LuaValue self) {
+                return LuaValue.valueOf(checkPending(self).future.isDone());
+            }
+        });
+        // Stops waiting for the result; Java work already running is left to finish
+        methods.set("cancel", new OneArgFunction() {
+            @Override
+            public LuaValue call(LuaValue self) {
+                return LuaValue.valueOf(checkPending(self).future.cancel(false));
+            }
+        });
+        return methods;
+    }
+
+    private LuaValue userdata(Pending pending) {
+        return LuaValue.userdataOf(pending, futureMeta);
+    }
+
+    private static Pending pendingOf(LuaValue value) {
+        return value.isuserdata() && value.touserdata() instanceof Pending ? (Pending) value.touserdata() : null;
+    }
+
+    private static Pending checkPending(LuaValue value) {
+        Pending pending = pendingOf(value);
+        if (pending == null) {
+            throw new LuaError("future expected, got " + value.typename());
+        }
+        return pending;
+    }
+
+    // Run work on a virtual thread; its result reaches Lua through toLua when awaited. With a
+    // discard, a result that is cancelled or never awaited is handed to it instead.
+    private Pending submit(Callable<Object> work, Function<Object, Varargs> toLua, Function<Throwable, Varargs> onError,
+            Consumer<Object> discard) {
+        Pending pending = new Pending(toLua, onError, discard);
+        if (discard != null) {
+            unclaimed.add(pending);
+        }
+        inFlight.incrementAndGet();
+        pending.future.whenComplete((v, e) -> {
+            inFlight.decrementAndGet();
+            completions.release();
+        });
+        VIRTUAL.execute(() -> {
+            try {
+                Object result = work.call();
+                // Fails only if cancelled, and then nothing else will claim the result
+                if (!pending.future.complete(result) && discard != null) {
+                    discard.accept(result);
+                }
+            } catch (Throwable e) {
+                pending.future.completeExceptionally(e);
+            } finally {
+                pending.finished.complete(null);
+            }
+        });
+        return pending;
+    }
+
+    private LuaValue callJava(Main.jpexsAutoLib.MethodWrapper method, Varargs args) {
+        for (int i = 1; i <= args.narg(); i++) {
+            if (args.arg(i).isfunction()) {
+                throw new LuaError("async Java calls can't take Lua functions, which would run off the Lua thread");
+            }
+        }
+        // Overload resolution and write tracking stay on the Lua thread; only the call moves
+        LuaValue self = method.self(args);
+        int first = method.first(args, self);
+        Object owner = method.owner(self, args, first);
+        Invoker invoker = method.resolve(self, args, first, owner);
+        Pending pending = submit(() -> method.call(invoker, self, args, first), v -> method.wrap(invoker, v, owner), null, null);
+        SWF swf = owner instanceof Tag ? ((Tag) owner).getSwf() : owner instanceof SWF ? (SWF) owner : null;
+        if (swf != null) {
+            calls.put(pending, swf);
+        }
+        return userdata(pending);
+    }
+
+    // Block until the async Java calls on swf have returned, cancelled ones included, so a
+    // save sees their writes; they only run Java code, so this can't wait on Lua
+    void settle(SWF swf) {
+        for (Iterator<Map.Entry<Pending, SWF>> it = calls.entrySet().iterator(); it.hasNext(); ) {
+            Map.Entry<Pending, SWF> call = it.next();
+            if (call.getValue() == swf) {
+                call.getKey().finished.join();
+            }
+            if (call.getKey().finished.isDone()) {
+                it.remove();
+            }
+        }
+    }
+
+    // Start a Lua function as a task; it runs until its first await before this returns
+    private LuaValue start(LuaValue fn, Varargs args) {
+        Task task = new Task(new LuaThread(globals, fn));
+        tasks.put(task.coroutine, task);
+        resume(task, args);
+        return userdata(task.result);
+    }
+
+    private void resume(Task task, Varargs args) {
+        task.waitingOn = null;
+        Varargs result = task.coroutine.resume(args);
+        if (!task.coroutine.getStatus().equals("dead")) {
+            return;
+        }
+        tasks.remove(task.coroutine);
+        if (result.arg1().toboolean()) {
+            task.result.future.complete(result.subargs(2));
+        } else {
+            task.result.future.completeExceptionally(new LuaError(result.arg(2)));
+        }
+    }
+
+    // Resume every task whose futures are done; true if any ran
+    private boolean resumeReady() {
+        boolean progressed = false;
+        for (Task task : new ArrayList<>(tasks.values())) {
+            if (task.result.future.isDone()) {
+                // Cancelled
+                abandon(task);
+            } else if (task.coroutine.getStatus().equals("suspended") && (task.waitingOn == null || allDone(task.waitingOn))) {
+                resume(task, LuaValue.NONE);
+                progressed = true;
+            }
+        }
+        return progressed;
+    }
+
+    // Drop a task; one suspended in await is resumed to throw, so its coroutine thread ends
+    // instead of waiting for LuaJ to notice it is unreachable
+    private void abandon(Task task) {
+        tasks.remove(task.coroutine);
+        if (task.waitingOn != null && task.coroutine.getStatus().equals("suspended")) {
+            task.abandoned = true;
+            task.coroutine.resume(LuaValue.NONE);
+        }
+    }
+
+    // Abandon every unfinished task, wait for async Java calls and give back results nobody
+    // awaited; call once the script is done
+    void release() {
+        for (Task task : new ArrayList<>(tasks.values())) {
+            task.result.future.cancel(false);
+            abandon(task);
+        }
+        for (Pending call : calls.keySet()) {
+            call.finished.join();
+        }
+        calls.clear();
+        for (Pending pending : unclaimed) {
+            // A job still running hands its result to discard when it sees the cancellation
+            if (pending.values == null && !pending.future.cancel(false) && !pending.future.isCompletedExceptionally()) {
+                pending.discard.accept(pending.future.join());
+            }
+        }
+        unclaimed.clear();
+    }
+
+    private static boolean allDone(List<Pending> list) {
+        for (Pending pending : list) {
+            if (!pending.future.isDone()) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private Varargs await(Pending pending) {
+        waitFor(Collections.singletonList(pending));
+        return valuesOf(pending);
+    }
+
+    private LuaValue[] awaitAll(LuaValue[] values) {
+        List<Pending> list = new ArrayList<>();
+        for (LuaValue value : values) {
+            Pending pending = pendingOf(value);
+            if (pending != null) {
+                list.add(pending);
+            }
+        }
+        waitFor(list);
+        LuaValue[] results = new LuaValue[values.length];
+        for (int i = 0; i < values.length; i++) {
+            Pending pending = pendingOf(values[i]);
+            results[i] = pending == null ? values[i] : valuesOf(pending).arg1();
+        }
+        return results;
+    }
+
+    // Inside a task, suspend its coroutine until list is done; anywhere else, run the other
+    // tasks until it is, sleeping while only virtual threads can make progress
+    private void waitFor(List<Pending> list) {
+        Task current = tasks.get(globals.running);
+        while (!allDone(list)) {
+            if (current != null) {
+                current.waitingOn = list;
+                globals.yield(LuaValue.NONE);
+                if (current.abandoned) {
+                    throw new LuaError("task abandoned: cancelled or the script ended");
+                }
+                continue;
+            }
+            int running = inFlight.get();
+            if (resumeReady()) {
+                continue;
+            }
+            if (running == 0 && !allDone(list)) {
+                throw new LuaError("await would never return: the awaited tasks are waiting on each other");
+            }
+            try {
+                completions.acquire();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new LuaError("Interrupted while awaiting");
+            }
+        }
+    }
+
+    private Varargs valuesOf(Pending pending) {
+        if (pending.values != null) {
+            return pending.values;
+        }
+        Object value;
+        try {
+            value = pending.future.get();
+        } catch (CancellationException e) {
+            throw new LuaError("future was cancelled");
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (pending.onError != null) {
+                pending.values = pending.onError.apply(cause);
+                return pending.values;
+            }
+            throw Main.jpexsAutoLib.bridgeError("", cause);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new LuaError("Interrupted while awaiting");
+        }
+        pending.values = pending.toLua.apply(value);
+        unclaimed.remove(pending);
+        return pending.values;
+    }
+}
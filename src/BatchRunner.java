@@ -0,0 +1,196 @@
+import org.luaj.vm2.*;
+import java.io.*;
+import java.nio.file.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.stream.Stream;
+
+// Runs one Lua script against many SWF files on a bounded worker pool.
+// The script is compiled once; each file gets its own Globals and jpexsAutoLib because
+// LuaJ state is not thread-safe, while ClassBinding metadata is shared by all workers.
+// Inside the script the SWF path is available as ... and as arg[1].
+final class BatchRunner {
+    private BatchRunner() {
+    }
+
+    // Outcome of one file
+    private static final class Result {
+        final String path;
+        boolean ok;
+        long nanos;
+        String error;
+        String output = "";
+
+        Result(String path) {
+            this.path = path;
+        }
+    }
+
+    // batch [--threads N] script.lua (file.swf | directory)...
+    static int run(String[] args) {
+        int threads = Runtime.getRuntime().availableProcessors();
+        String script = null;
+        List<String> inputs = new ArrayList<>();
+
+        for (int i = 0; i < args.length; i++) {
+            if (args[i].equals("--threads") && i + 1 < args.length) {
+                try {
+                    threads = Math.max(1, Integer.parseInt(args[++i]));
+                } catch (NumberFormatException e) {
+                    System.err.println("Invalid --threads value: " + args[i]);
+                    System.err.println("Usage: batch [--threads N] script.lua (file.swf | directory)...");
+                    return 2;
+                }
+            } else if (script == null) {
+                script = args[i];
+            } else {
+                inputs.add(args[i]);
+            }
+        }
+
+        if (script == null || inputs.isEmpty()) {
+            System.err.println("Usage: batch [--threads N] script.lua (file.swf | directory)...");
+            return 2;
+        }
+
+        List<String> files;
+        Prototype prototype;
+        try {
+            files = collectInputs(inputs);
+            prototype = compile(script);
+        } catch (IOException e) {
+            System.err.println("Error preparing batch: " + e.getMessage());
+            return 1;
+        }
+
+        if (files.isEmpty()) {
+            System.err.println("No SWF files found");
+            return 1;
+        }
+
+        threads = Math.min(threads, files.size());
+        long start = System.nanoTime();
+        List<Result> results = runAll(script, prototype, files, threads);
+        long wall = System.nanoTime() - start;
+
+        printSummary(results, wall, threads);
+        return results.stream().allMatch(r -> r.ok) ? 0 : 1;
+    }
+
+    private static List<Result> runAll(String script, Prototype prototype, List<String> files, int threads) {
+        ExecutorService pool = Executors.newFixedThreadPool(threads);
+        try {
+            List<Future<Result>> futures = new ArrayList<>();
+            for (String file : files) {
+                futures.add(pool.submit(() -> runOne(script, prototype, file)));
+            }
+
+            List<Result> results = new ArrayList<>();
+            for (int i = 0; i < futures.size(); i++) {
+                try {
+                    Result result = futures.get(i).get();
+                    results.add(result);
+
+                    // Print each file's captured output in one piece as it completes
+                    if (!result.output.isEmpty()) {
+                        System.out.print("[" + result.path + "]\n" + result.output);
+                    }
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    break;
+                } catch (ExecutionException e) {
+                    Result failed = new Result(files.get(i));
+                    failed.error = String.valueOf(e.getCause());
+                    results.add(failed);
+                }
+            }
+            return results;
+        } finally {
+            pool.shutdownNow();
+        }
+    }
+
+    private static Result runOne(String script, Prototype prototype, String file) {
+        Result result = new Result(file);
+        ByteArrayOutputStream output = new ByteArrayOutputStream();
+        long start = System.nanoTime();
+
+        Main.jpexsAutoLib lib = null;
+        try {
+            lib = Main.createLibrary();
+            Globals globals = lib.globals();
+            globals.STDOUT = new PrintStream(output, true);
+
+            LuaTable arg = new LuaTable();
+            arg.set(0, LuaValue.valueOf(script));
+            arg.set(1, LuaValue.valueOf(file));
+            globals.set("arg", arg);
+
+            globals.loader.load(prototype, "@" + script, globals).invoke(LuaValue.valueOf(file));
+            result.ok = true;
+        } catch (LuaError e) {
+            result.error = e.getMessage();
+        } catch (Exception e) {
+            result.error = e.toString();
+        } finally {
+            if (lib != null) {
+                lib.release();
+            }
+            result.nanos = System.nanoTime() - start;
+            result.output = output.toString();
+        }
+        return result;
+    }
+
+    static Prototype compile(String script) throws IOException {
+        Globals globals = Main.createGlobals();
+        try (InputStream is = new BufferedInputStream(new FileInputStream(script))) {
+            return globals.loadPrototype(is, "@" + script, "bt");
+        }
+    }
+
+    // Expand directories into the SWF files they contain, keeping the given order otherwise
+    private static List<String> collectInputs(List<String> inputs) throws IOException {
+        List<String> files = new ArrayList<>();
+        for (String input : inputs) {
+            Path path = Paths.get(input);
+            if (Files.isDirectory(path)) {
+                try (Stream<Path> walk = Files.walk(path)) {
+                    walk.filter(p -> Files.isRegularFile(p) && p.getFileName().toString().toLowerCase(Locale.ROOT).endsWith(".swf"))
+                            .sorted()
+                            .forEach(p -> files.add(p.toString()));
+                }
+            } else {
+                files.add(input);
+            }
+        }
+        return files;
+    }
+
+    private static void printSummary(List<Result> results, long wallNanos, int threads) {
+        long busy = 0;
+        int failures = 0;
+
+        System.out.println();
+        System.out.println(String.format("%-8s %10s  %s", "STATUS", "TIME (ms)", "FILE"));
+        for (Result result : results) {
+            busy += result.nanos;
+            if (!result.ok) {
+                failures++;
+            }
+            System.out.println(String.format("%-8s %10.1f  %s", result.ok ? "OK" : "FAILED", result.nanos / 1e6, result.path));
+            if (!result.ok) {
+                System.out.println("         " + result.error);
+            }
+        }
+
+        System.out.println();
+        System.out.println(String.format("%d files, %d failed, %d workers", results.size(), failures, threads));
+        System.out.println(String.format("Wall time %.1f ms, summed file time %.1f ms, parallel speedup %.2fx",
+                wallNanos / 1e6, busy / 1e6, wallNanos > 0 ? (double) busy / wallNanos : 0));
+        if (ScriptCache.TIMING) {
+            System.out.println(ScriptCache.report());
+            System.out.println(SwfCache.report());
+        }
+    }
+}
@@ -0,0 +1,272 @@
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+import jdk.jfr.Timespan;
+
+// Opt-in profiler for the Lua/Java bridge: per class and member, how often it was called, how
+// long that took (total, percentiles, max), failed overload resolutions and Java exceptions,
+// plus objects wrapped for Lua and values converted for Java. Every hook is behind the static
+// final ENABLED, so with profiling off the JIT drops them entirely; with it on, counters are
+// LongAdders and log-scale histograms, cheap enough for CI and safe for batch workers.
+// Call times include converting the arguments, which is also counted on its own under
+// "convert"; wrapping the result is counted under "wrap" only.
+//
+// System properties:
+//   yajml.profile            "true" to print the report to stderr when the JVM exits, or a path
+//                            prefix to write <prefix>.txt and <prefix>.json instead
+//   yajml.profile.slowMicros calls at least this slow are also emitted as yajml.BridgeCall
+//                            JFR events when a recording is running (default 1000)
+final class BridgeProfiler {
+    private static final String SETTING = System.getProperty("yajml.profile");
+    static final boolean ENABLED = SETTING != null && !SETTING.equals("false");
+    private static final long SLOW_NANOS = Long.getLong("yajml.profile.slowMicros", 1000) * 1000;
+
+    static final int CALL = 0;
+    static final int GET = 1;
+    static final int SET = 2;
+    static final int WRAP = 3;
+    static final int CONVERT = 4;
+    private static final String[] KINDS = {"call", "get", "set", "wrap", "convert"};
+
+    // Histogram buckets: exact below 8 ns, then four per power of two
+    private static final int BUCKETS = 248;
+
+    private static final ClassValue<Map<String, Stats[]>> members = new ClassValue<Map<String, Stats[]>>() {
+        @Override
+        protected Map<String, Stats[]> computeValue(Class<?> type) {
+            return new ConcurrentHashMap<>();
+        }
+    };
+    private static final Set<Stats> all = ConcurrentHashMap.newKeySet();
+    private static final long started = System.nanoTime();
+
+    static {
+        if (ENABLED) {
+            Runtime.getRuntime().addShutdownHook(new Thread(BridgeProfiler::writeReport, "yajml-profile"));
+        }
+    }
+
+    private BridgeProfiler() {
+    }
+
+    private static final class Stats {
+        final int kind;
+        final String className;
+        final String member;
+        final LongAdder count = new LongAdder();
+        final LongAdder nanos = new LongAdder();
+        final LongAdder failedOverloads = new LongAdder();
+        final LongAdder errors = new LongAdder();
+        final LongAccumulator max = new LongAccumulator(Math::max, 0);
+        final AtomicLongArray buckets = new AtomicLongArray(BUCKETS);
+
+        Stats(int kind, String className, String member) {
+            this.kind = kind;
+            this.className = className;
+            this.member = member;
+        }
+
+        // Upper bound of the bucket holding the q-th fraction of samples, capped at the max
+        long percentile(double q) {
+            long total = 0;
+            for (int i = 0; i < BUCKETS; i++) {
+                total += buckets.get(i);
+            }
+            long target = (long) Math.ceil(q * total);
+            long seen = 0;
+            for (int i = 0; i < BUCKETS; i++) {
+                seen += buckets.get(i);
+                if (seen >= target && seen > 0) {
+                    return Math.min(upperBound(i), max.get());
+                }
+            }
+            return 0;
+        }
+    }
+
+    @Name("yajml.BridgeCall")
+    @Label("Bridge Call")
+    @Category("YAJML")
+    @Description("A slow call from Lua into Java through the bridge")
+    @StackTrace(false)
+    static final class CallEvent extends Event {
+        @Label("Kind")
+        String kind;
+        @Label("Class")
+        String className;
+        @Label("Member")
+        String member;
+        @Label("Bridge Duration")
+        @Timespan(Timespan.NANOSECONDS)
+        long bridgeDuration;
+        @Label("Failed")
+        boolean failed;
+    }
+
+    // Record one operation that began at start (System.nanoTime); member is "" for wrap and convert
+    static void record(int kind, Class<?> type, String member, long start, boolean failed) {
+        long nanos = System.nanoTime() - start;
+        Stats stats = stats(kind, type, member);
+        stats.count.increment();
+        stats.nanos.add(nanos);
+        stats.max.accumulate(nanos);
+        stats.buckets.incrementAndGet(bucket(nanos));
+        if (failed) {
+            stats.errors.increment();
+        }
+
+        if (nanos >= SLOW_NANOS) {
+            CallEvent event = new CallEvent();
+            if (event.isEnabled()) {
+                event.kind = KINDS[kind];
+                event.className = type.getName();
+                event.member = member;
+                event.bridgeDuration = nanos;
+                event.failed = failed;
+                event.commit();
+            }
+        }
+    }
+
+    // No overload accepted the Lua arguments
+    static void failedOverload(int kind, Class<?> type, String member) {
+        stats(kind, type, member).failedOverloads.increment();
+    }
+
+    private static Stats stats(int kind, Class<?> type, String member) {
+        Stats[] byKind = members.get(type).computeIfAbsent(member, m -> new Stats[KINDS.length]);
+        Stats stats = byKind[kind];
+        if (stats == null) {
+            synchronized (byKind) {
+                stats = byKind[kind];
+                if (stats == null) {
+                    stats = new Stats(kind, type.getName(), member);
+                    all.add(stats);
+                    byKind[kind] = stats;
+                }
+            }
+        }
+        return stats;
+    }
+
+    private static int bucket(long nanos) {
+        if (nanos < 8) {
+            return (int) Math.max(0, nanos);
+        }
+        int msb = 63 - Long.numberOfLeadingZeros(nanos);
+        return (msb - 1) * 4 + (int) ((nanos >>> (msb - 2)) & 3);
+    }
+
+    private static long upperBound(int bucket) {
+        if (bucket < 8) {
+            return bucket;
+        }
+        int msb = bucket / 4 + 1;
+        return (5L + bucket % 4) << (msb - 2);
+    }
+
+    private static List<Stats> snapshot() {
+        List<Stats> rows = new ArrayList<>(all);
+        rows.sort(Comparator.comparingLong((Stats s) -> s.nanos.sum()).reversed());
+        return rows;
+    }
+
+    private static void writeReport() {
+        List<Stats> rows = snapshot();
+        long wall = System.nanoTime() - started;
+        try {
+            if (SETTING.equals("true")) {
+                System.err.print(text(rows, wall));
+            } else {
+                Path prefix = Paths.get(SETTING).toAbsolutePath();
+                if (prefix.getParent() != null) {
+                    Files.createDirectories(prefix.getParent());
+                }
+                Files.write(Paths.get(prefix + ".txt"), text(rows, wall).getBytes(StandardCharsets.UTF_8));
+                Files.write(Paths.get(prefix + ".json"), json(rows, wall).getBytes(StandardCharsets.UTF_8));
+            }
+        } catch (IOException e) {
+            System.err.println("Error writing bridge profile: " + e.getMessage());
+        }
+    }
+
+    private static String text(List<Stats> rows, long wall) {
+        StringBuilder out = new StringBuilder();
+        long[] kindNanos = new long[KINDS.length];
+        long[] kindCounts = new long[KINDS.length];
+        for (Stats s : rows) {
+            kindNanos[s.kind] += s.nanos.sum();
+            kindCounts[s.kind] += s.count.sum();
+        }
+
+        out.append(String.format("%nBridge profile, %.1f ms since profiling started%n", wall / 1e6));
+        for (int k = 0; k < KINDS.length; k++) {
+            out.append(String.format("  %-8s %10d ops %12.1f ms%n", KINDS[k], kindCounts[k], kindNanos[k] / 1e6));
+        }
+        long bridge = kindNanos[CALL] + kindNanos[GET] + kindNanos[SET] + kindNanos[WRAP];
+        out.append(String.format("  Outside the bridge (Lua and the rest), single-threaded runs: ~%.1f ms%n%n", Math.max(0, wall - bridge) / 1e6));
+
+        out.append(String.format("%-8s %-50s %10s %10s %9s %9s %9s %9s %9s %7s %7s%n",
+                "KIND", "CLASS.MEMBER", "COUNT", "TOTAL ms", "MEAN us", "P50 us", "P90 us", "P99 us", "MAX us", "NOMATCH", "ERRORS"));
+        for (Stats s : rows) {
+            long count = s.count.sum();
+            String name = simpleName(s.className) + (s.member.isEmpty() ? "" : "." + s.member);
+            out.append(String.format("%-8s %-50s %10d %10.2f %9.2f %9.2f %9.2f %9.2f %9.2f %7d %7d%n",
+                    KINDS[s.kind], name, count, s.nanos.sum() / 1e6,
+                    count > 0 ? s.nanos.sum() / 1e3 / count : 0.0,
+                    s.percentile(0.5) / 1e3, s.percentile(0.9) / 1e3, s.percentile(0.99) / 1e3, s.max.get() / 1e3,
+                    s.failedOverloads.sum(), s.errors.sum()));
+        }
+        return out.toString();
+    }
+
+    private static String json(List<Stats> rows, long wall) {
+        StringBuilder out = new StringBuilder();
+        out.append("{\"wallNanos\":").append(wall).append(",\"members\":[");
+        for (int i = 0; i < rows.size(); i++) {
+            Stats s = rows.get(i);
+            out.append(i == 0 ? "" : ",").append("\n{\"kind\":").append(quote(KINDS[s.kind]))
+                    .append(",\"class\":").append(quote(s.className))
+                    .append(",\"member\":").append(quote(s.member))
+                    .append(",\"count\":").append(s.count.sum())
+                    .append(",\"totalNanos\":").append(s.nanos.sum())
+                    .append(",\"p50Nanos\":").append(s.percentile(0.5))
+                    .append(",\"p90Nanos\":").append(s.percentile(0.9))
+                    .append(",\"p99Nanos\":").append(s.percentile(0.99))
+                    .append(",\"maxNanos\":").append(s.max.get())
+                    .append(",\"failedOverloads\":").append(s.failedOverloads.sum())
+                    .append(",\"errors\":").append(s.errors.sum())
+                    .append('}');
+        }
+        return out.append("\n]}\n").toString();
+    }
+
+    private static String simpleName(String className) {
+        return className.substring(className.lastIndexOf('.') + 1);
+    }
+
+    private static String quote(String s) {
+        StringBuilder out = new StringBuilder("\"");
+        for (char c : s.toCharArray()) {
+            if (c == '"' || c == '\\') {
+                out.append('\\').append(c);
+            } else if (c < 0x20) {
+                out.append(String.format("\\u%04x", (int) c));
+            } else {
+                out.append(c);
+            }
+        }
+        return out.append('"').toString();
+    }
+}
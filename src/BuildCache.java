@@ -0,0 +1,238 @@
+import java.io.*;
+import java.net.URISyntaxException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.security.CodeSource;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.*;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.stream.Stream;
+import com.jpexs.decompiler.flash.SWF;
+
+// Content-addressed cache of pipeline outputs. A target's key hashes the input SWF, every mod
+// script applied to it together with the modules it require()s and the files its manifest
+// entry lists as inputs, the save options and the loader and JPEXS versions; when nothing in
+// the key changed the cached output is copied into place instead of parsing the SWF and
+// running the mods again. Only literal require("name") calls are followed, and other files a
+// mod reads (images, data) count only when listed in its inputs, so a mod that builds module
+// names at run time or reads unlisted files needs its inputs listed or pipeline --no-cache.
+// The input is hashed as it is on disk, so it must be the pristine SWF and never the output.
+// Entries are one file each: the original build time in nanoseconds, then the output SWF.
+//
+// System property:
+//   yajml.buildCache  cache directory (default ~/.yajml/builds), or "off"
+final class BuildCache {
+    // Bumped when the key or file layout changes
+    private static final String FORMAT = "yajml-build/2";
+    private static final String DIRECTORY = System.getProperty("yajml.buildCache",
+            Paths.get(System.getProperty("user.home"), ".yajml", "builds").toString());
+    static final boolean ENABLED = !DIRECTORY.equals("off");
+
+    private static final Pattern REQUIRE = Pattern.compile("\\brequire\\s*\\(?\\s*[\"']([\\w./-]+)[\"']");
+    private static final String LOADER_VERSION = loaderVersion();
+
+    private static final AtomicLong hits = new AtomicLong();
+    private static final AtomicLong misses = new AtomicLong();
+    private static final AtomicLong savedNanos = new AtomicLong();
+
+    private BuildCache() {
+    }
+
+    // Hash of a mod script, recursively the modules it requires, and its listed input files;
+    // a directory input stands for every file below it
+    static String scriptHash(Path script, List<Path> inputs) throws IOException {
+        MessageDigest digest = sha256();
+        Set<Path> visited = new HashSet<>();
+        Deque<Path> pending = new ArrayDeque<>();
+        pending.add(script.toAbsolutePath().normalize());
+
+        // Breadth-first from the script, so the digest order is stable between runs
+        while (!pending.isEmpty()) {
+            Path file = pending.poll();
+            if (!visited.add(file)) {
+                continue;
+            }
+            byte[] source = Files.readAllBytes(file);
+            update(digest, file.toString());
+            digest.update(source);
+
+            Matcher matcher = REQUIRE.matcher(new String(source, StandardCharsets.UTF_8));
+            while (matcher.find()) {
+                String module = matcher.group(1);
+                List<Path> found = resolve(module, file.getParent());
+                // A module that isn't on disk still belongs in the key, so adding it later is a change
+                update(digest, "require " + module + " -> " + found.size());
+                pending.addAll(found);
+            }
+        }
+
+        for (Path input : inputs) {
+            update(digest, "input " + input);
+            if (!Files.exists(input)) {
+                update(digest, "missing");
+                continue;
+            }
+            List<Path> files = new ArrayList<>();
+            try (Stream<Path> walk = Files.walk(input)) {
+                walk.filter(Files::isRegularFile).sorted().forEach(files::add);
+            }
+            for (Path file : files) {
+                update(digest, input.relativize(file).toString());
+                digest.update(Files.readAllBytes(file));
+            }
+        }
+        return hex(digest.digest());
+    }
+
+    // Key for one target: the input SWF's digest, which the caller can pass on to SwfCache.open,
+    // the ordered mods as (name, scriptHash) pairs, and save options
+    static String key(SwfCache.Digest input, List<String> mods, String options) {
+        MessageDigest digest = sha256();
+        update(digest, FORMAT);
+        update(digest, LOADER_VERSION);
+        update(digest, options);
+        for (String mod : mods) {
+            update(digest, mod);
+        }
+        update(digest, input.hash);
+        return hex(digest.digest());
+    }
+
+    // Copy the cached output for key to output; false on a miss
+    static boolean restore(String key, Path output) {
+        Path entry = Paths.get(DIRECTORY, key + ".swf");
+        if (!Files.isRegularFile(entry)) {
+            misses.incrementAndGet();
+            return false;
+        }
+
+        long start = System.nanoTime();
+        Path temp = output.resolveSibling(output.getFileName() + "." + Long.toHexString(start) + ".tmp");
+        try {
+            if (Files.size(entry) < 8) {
+                // Cut short, say by a full disk; not worth keeping
+                Files.deleteIfExists(entry);
+                misses.incrementAndGet();
+                return false;
+            }
+            Files.createDirectories(output.toAbsolutePath().getParent());
+            long buildNanos;
+            try (FileChannel in = FileChannel.open(entry, StandardOpenOption.READ);
+                 FileChannel out = FileChannel.open(temp, StandardOpenOption.WRITE, StandardOpenOption.CREATE_NEW)) {
+                ByteBuffer header = ByteBuffer.allocate(8);
+                while (header.hasRemaining() && in.read(header, header.position()) > 0) {
+                    // keep reading
+                }
+                header.flip();
+                buildNanos = header.getLong();
+                long size = in.size();
+                for (long position = 8; position < size; ) {
+                    position += in.transferTo(position, size - position, out);
+                }
+            }
+            Files.move(temp, output, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            hits.incrementAndGet();
+            savedNanos.addAndGet(Math.max(0, buildNanos - (System.nanoTime() - start)));
+            return true;
+        } catch (IOException e) {
+            // Unreadable entry; rebuild and overwrite it
+            misses.incrementAndGet();
+            return false;
+        } finally {
+            try {
+                Files.deleteIfExists(temp);
+            } catch (IOException ignored) {
+                // best effort
+            }
+        }
+    }
+
+    // Remember output as the result for key; buildNanos is what a hit will report as saved
+    static void store(String key, Path output, long buildNanos) {
+        Path entry = Paths.get(DIRECTORY, key + ".swf");
+        try {
+            Files.createDirectories(entry.getParent());
+            Path temp = Files.createTempFile(entry.getParent(), key, ".tmp");
+            try {
+                try (FileChannel out = FileChannel.open(temp, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+                     FileChannel in = FileChannel.open(output, StandardOpenOption.READ)) {
+                    ByteBuffer header = ByteBuffer.allocate(8);
+                    header.putLong(buildNanos);
+                    header.flip();
+                    out.write(header);
+                    long size = in.size();
+                    for (long position = 0; position < size; ) {
+                        position += in.transferTo(position, size - position, out);
+                    }
+                }
+                Files.move(temp, entry, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            } finally {
+                Files.deleteIfExists(temp);
+            }
+        } catch (IOException e) {
+            // A cache that can't be written only costs a rebuild next time
+        }
+    }
+
+    static String report() {
+        return String.format("Build cache: %d hits, %d misses, ~%.1f ms saved", hits.get(), misses.get(), savedNanos.get() / 1e6);
+    }
+
+    // Files require(module) could load: package.path's default ?.lua from the working
+    // directory, and the same relative to the requiring script
+    private static List<Path> resolve(String module, Path scriptDir) {
+        String relative = module.replace('.', '/') + ".lua";
+        List<Path> found = new ArrayList<>();
+        for (Path candidate : new Path[]{Paths.get(relative), scriptDir == null ? null : scriptDir.resolve(relative)}) {
+            if (candidate != null && Files.isRegularFile(candidate)) {
+                Path normalized = candidate.toAbsolutePath().normalize();
+                if (!found.contains(normalized)) {
+                    found.add(normalized);
+                }
+            }
+        }
+        return found;
+    }
+
+    // Release versions where the jars carry one; otherwise the build time of the loader's classes
+    private static String loaderVersion() {
+        String version = Main.class.getPackage() != null ? Main.class.getPackage().getImplementationVersion() : null;
+        if (version == null) {
+            try {
+                CodeSource source = Main.class.getProtectionDomain().getCodeSource();
+                Path location = Paths.get(source.getLocation().toURI());
+                Path classFile = Files.isDirectory(location) ? location.resolve("Main.class") : location;
+                version = "dev-" + Files.getLastModifiedTime(classFile).toMillis();
+            } catch (IOException | URISyntaxException | RuntimeException e) {
+                version = "dev";
+            }
+        }
+        return version + "/jpexs-" + SWF.class.getPackage().getImplementationVersion();
+    }
+
+    private static void update(MessageDigest digest, String text) {
+        digest.update(text.getBytes(StandardCharsets.UTF_8));
+        digest.update((byte) 0);
+    }
+
+    private static MessageDigest sha256() {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static String hex(byte[] bytes) {
+        StringBuilder hex = new StringBuilder();
+        for (byte b : bytes) {
+            hex.append(String.format("%02x", b));
+        }
+        return hex.toString();
+    }
+}
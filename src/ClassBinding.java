@@ -0,0 +1,181 @@
+import org.luaj.vm2.LuaString;
+import org.luaj.vm2.LuaValue;
+import java.lang.invoke.MethodHandle;
+import java.lang.reflect.*;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+
+// Reflection metadata for a Java class, built once and shared by every wrapped instance
+final class ClassBinding {
+    // Bindings are immutable once built, so one registry can serve every Lua state
+    private static final Map<Class<?>, ClassBinding> bindings = new ConcurrentHashMap<>();
+
+    final Class<?> type;
+    private final Map<LuaString, Member> members = new HashMap<>();
+    private volatile OverloadSet constructors;
+
+    // Everything Lua can reach under one key: overloads, the matching setters and a public field.
+    // Invokers and field handles are generated on first use and then reused.
+    static final class Member {
+        final String name;
+        final List<Method> methods = new ArrayList<>();
+        final List<Method> setters = new ArrayList<>();
+        Field field;
+
+        private volatile OverloadSet overloads;
+        private volatile OverloadSet setterOverloads;
+        private volatile OverloadSet staticOverloads;
+        private volatile MethodHandle fieldGetter;
+        private volatile MethodHandle fieldSetter;
+
+        Member(String name) {
+            this.name = name;
+        }
+
+        OverloadSet overloads() {
+            OverloadSet result = overloads;
+            if (result == null) {
+                result = overloadSet(methods);
+                overloads = result;
+            }
+            return result;
+        }
+
+        // Static overloads only, for class tables; null when there are none
+        OverloadSet staticOverloads() {
+            OverloadSet result = staticOverloads;
+            if (result == null) {
+                List<Method> statics = new ArrayList<>();
+                for (Method method : methods) {
+                    if (Modifier.isStatic(method.getModifiers())) {
+                        statics.add(method);
+                    }
+                }
+                if (statics.isEmpty()) {
+                    return null;
+                }
+                result = overloadSet(statics);
+                staticOverloads = result;
+            }
+            return result;
+        }
+
+        // One-argument setters for the property, or null when there are none
+        OverloadSet setters() {
+            OverloadSet result = setterOverloads;
+            if (result == null && !setters.isEmpty()) {
+                result = overloadSet(setters);
+                setterOverloads = result;
+            }
+            return result;
+        }
+
+        MethodHandle fieldGetter() {
+            MethodHandle result = fieldGetter;
+            if (result == null && field != null) {
+                result = Invoker.fieldGetter(field);
+                fieldGetter = result;
+            }
+            return result;
+        }
+
+        MethodHandle fieldSetter() {
+            MethodHandle result = fieldSetter;
+            if (result == null && field != null) {
+                result = Invoker.fieldSetter(field);
+                fieldSetter = result;
+            }
+            return result;
+        }
+    }
+
+    private ClassBinding(Class<?> type) {
+        this.type = type;
+
+        // Bridge methods duplicate a real overload with erased types; visibility bridges
+        // (public methods inherited from non-public classes) have no twin and are kept
+        Method[] declared = type.getMethods();
+        Set<String> signatures = new HashSet<>();
+        for (Method method : declared) {
+            if (!method.isBridge()) {
+                signatures.add(method.getName() + Arrays.toString(method.getParameterTypes()));
+            }
+        }
+        List<Method> methods = new ArrayList<>();
+        for (Method method : declared) {
+            if (!method.isBridge() || signatures.add(method.getName() + Arrays.toString(method.getParameterTypes()))) {
+                methods.add(method);
+            }
+        }
+
+        for (Method method : methods) {
+            member(method.getName()).methods.add(method);
+        }
+
+        // Getter fallback: "getFoo" resolves to "isFoo" when there is no real getFoo
+        for (Method method : methods) {
+            String name = method.getName();
+            if (name.startsWith("is") && name.length() > 2) {
+                Member getter = member("get" + name.substring(2));
+                if (getter.methods.isEmpty() || getter.methods.get(0).getName().startsWith("is")) {
+                    getter.methods.add(method);
+                }
+            }
+        }
+
+        // Setters are reachable as both "foo" and "Foo"
+        for (Method method : methods) {
+            String name = method.getName();
+            if (name.startsWith("set") && name.length() > 3 && method.getParameterCount() == 1) {
+                String property = name.substring(3);
+                String decapitalized = Character.toLowerCase(property.charAt(0)) + property.substring(1);
+                member(property).setters.add(method);
+                if (!decapitalized.equals(property)) {
+                    member(decapitalized).setters.add(method);
+                }
+            }
+        }
+
+        for (Field field : type.getFields()) {
+            field.trySetAccessible();
+            member(field.getName()).field = field;
+        }
+    }
+
+    static ClassBinding of(Class<?> clazz) {
+        return bindings.computeIfAbsent(clazz, ClassBinding::new);
+    }
+
+    // Public constructors, generated on first use
+    OverloadSet constructors() {
+        OverloadSet result = constructors;
+        if (result == null) {
+            Constructor<?>[] declared = type.getConstructors();
+            Invoker[] invokers = new Invoker[declared.length];
+            for (int i = 0; i < declared.length; i++) {
+                invokers[i] = Invoker.of(declared[i]);
+            }
+            result = new OverloadSet(invokers);
+            constructors = result;
+        }
+        return result;
+    }
+
+    static OverloadSet overloadSet(List<Method> methods) {
+        Invoker[] invokers = new Invoker[methods.size()];
+        for (int i = 0; i < invokers.length; i++) {
+            invokers[i] = Invoker.of(methods.get(i));
+        }
+        return new OverloadSet(invokers);
+    }
+
+    // Single hash lookup for a Lua key; null when the class has no such member
+    Member lookup(LuaValue key) {
+        LuaString name = key.isstring() ? key.strvalue() : LuaValue.valueOf(key.tojstring());
+        return members.get(name);
+    }
+
+    private Member member(String name) {
+        return members.computeIfAbsent(LuaValue.valueOf(name), k -> new Member(name));
+    }
+}
@@ -0,0 +1,321 @@
+import org.luaj.vm2.*;
+import java.lang.invoke.*;
+import java.lang.reflect.*;
+import java.util.*;
+
+// Direct call path for a Java method or constructor, built once from a MethodHandle.
+// Arguments are read straight from LuaValues (toint, todouble, ...) so primitive
+// parameters are never boxed, and primitive results come back as LuaValues.
+final class Invoker {
+    private static final MethodHandles.Lookup LOOKUP = MethodHandles.lookup();
+    private static final int MAX_DIRECT_ARITY = 3;
+
+    final Executable executable;
+    final Class<?>[] parameterTypes;
+    // False only for methods listed in QUERIES; used to tell whether a script may have changed
+    // an object it was handed
+    final boolean mutating;
+    private final int arity;
+    // (Object receiver, LuaValue... args)Object, or (Object, LuaValue[])Object above MAX_DIRECT_ARITY
+    private final MethodHandle handle;
+
+    private Invoker(Executable executable, MethodHandle target) {
+        this.executable = executable;
+        this.parameterTypes = executable.getParameterTypes();
+        this.mutating = executable instanceof Method && !isQuery((Method) executable);
+        this.arity = parameterTypes.length;
+
+        MethodHandle h = MethodHandles.filterArguments(target, 1, argumentFilters(parameterTypes));
+        h = resultFilter(h);
+        if (arity > MAX_DIRECT_ARITY) {
+            h = h.asSpreader(LuaValue[].class, arity);
+        }
+        this.handle = h;
+    }
+
+    static Invoker of(Method method) {
+        MethodHandle target = unreflect(method);
+        if (Modifier.isStatic(method.getModifiers())) {
+            target = MethodHandles.dropArguments(target, 0, Object.class);
+        }
+        return new Invoker(method, target.asType(target.type().changeParameterType(0, Object.class)));
+    }
+
+    static Invoker of(Constructor<?> constructor) {
+        MethodHandle target;
+        try {
+            target = MethodHandles.publicLookup().unreflectConstructor(constructor);
+        } catch (IllegalAccessException e) {
+            target = reflective(constructor);
+        }
+        return new Invoker(constructor, MethodHandles.dropArguments(target, 0, Object.class));
+    }
+
+    // Call with the Lua arguments starting at position first; primitive results are already LuaValues
+    Object invoke(Object receiver, Varargs args, int first) throws Throwable {
+        switch (arity) {
+            case 0:
+                return (Object) handle.invokeExact(receiver);
+            case 1:
+                return (Object) handle.invokeExact(receiver, args.arg(first));
+            case 2:
+                return (Object) handle.invokeExact(receiver, args.arg(first), args.arg(first + 1));
+            case 3:
+                return (Object) handle.invokeExact(receiver, args.arg(first), args.arg(first + 1), args.arg(first + 2));
+            default:
+                LuaValue[] spread = new LuaValue[arity];
+                for (int i = 0; i < arity; i++) {
+                    spread[i] = args.arg(first + i);
+                }
+                return (Object) handle.invokeExact(receiver, spread);
+        }
+    }
+
+    int arity() {
+        return arity;
+    }
+
+    // (Object)Object reader for a field, with the same result conversion as method returns
+    static MethodHandle fieldGetter(Field field) {
+        try {
+            MethodHandle h = MethodHandles.publicLookup().unreflectGetter(field);
+            if (Modifier.isStatic(field.getModifiers())) {
+                h = MethodHandles.dropArguments(h, 0, Object.class);
+            }
+            return resultFilter(h.asType(h.type().changeParameterType(0, Object.class)));
+        } catch (IllegalAccessException e) {
+            return null;
+        }
+    }
+
+    // (Object, LuaValue)void writer for a field; null for final or inaccessible fields
+    static MethodHandle fieldSetter(Field field) {
+        try {
+            MethodHandle h = MethodHandles.publicLookup().unreflectSetter(field);
+            if (Modifier.isStatic(field.getModifiers())) {
+                h = MethodHandles.dropArguments(h, 0, Object.class);
+            }
+            h = MethodHandles.filterArguments(h, 1, argumentFilter(field.getType()));
+            return h.asType(MethodType.methodType(void.class, Object.class, LuaValue.class));
+        } catch (IllegalAccessException e) {
+            return null;
+        }
+    }
+
+    // Methods known not to change their receiver, by the type that declares them. Anything else
+    // may write, including getters that create on demand such as getStringId(value, add), so
+    // a read-only method missing here only costs a re-serialized tag or a skipped SwfCache reuse
+    private static final Map<String, Set<String>> QUERIES = new HashMap<>();
+    // Immutable types, all of whose methods are queries
+    private static final Set<Class<?>> IMMUTABLE = new HashSet<>(Arrays.asList(
+            String.class, Boolean.class, Character.class, Byte.class, Short.class, Integer.class,
+            Long.class, Float.class, Double.class, Number.class, Class.class));
+
+    static {
+        query("java.lang.Object", "equals", "hashCode", "toString", "getClass");
+        query("java.lang.Comparable", "compareTo");
+        query("java.lang.CharSequence", "length", "charAt", "subSequence", "isEmpty", "toString");
+        query("java.lang.Enum", "name", "ordinal", "compareTo", "getDeclaringClass");
+        query("java.lang.Iterable", "iterator");
+        query("java.util.Collection", "size", "isEmpty", "contains", "containsAll", "toArray", "stream", "iterator");
+        query("java.util.List", "get", "indexOf", "lastIndexOf", "subList", "listIterator");
+        query("java.util.Map", "get", "getOrDefault", "containsKey", "containsValue", "size", "isEmpty",
+                "keySet", "values", "entrySet");
+        query("java.util.Map$Entry", "getKey", "getValue");
+        query("java.util.Iterator", "hasNext", "next");
+
+        query("com.jpexs.decompiler.flash.SWF", "getTags", "getAbcList", "getAS3Packs", "getCharacter",
+                "getCharacters", "getFileTitle", "getShortFileName", "getFrameCount", "getTimeline", "isAS3",
+                "isModified", "getCached");
+        query("com.jpexs.decompiler.flash.timeline.Timelined", "getTags", "getTimeline");
+        query("com.jpexs.decompiler.flash.tags.Tag", "getId", "getName", "getTagName", "getSwf", "getTimelined",
+                "isModified", "getData", "getOriginalData");
+        query("com.jpexs.decompiler.flash.tags.base.CharacterTag", "getCharacterId", "getExportName", "getClassNames");
+        query("com.jpexs.decompiler.flash.tags.ABCContainerTag", "getABC");
+        query("com.jpexs.decompiler.flash.abc.ABC", "findBody", "findBodyIndex", "getSwf");
+        query("com.jpexs.decompiler.flash.abc.ScriptPack", "getPath");
+        query("com.jpexs.decompiler.flash.abc.types.MethodBody", "getCode");
+        query("com.jpexs.decompiler.flash.abc.types.Multiname", "getName", "getNameWithNamespace", "getNamespace");
+        query("com.jpexs.decompiler.flash.abc.types.traits.Trait", "getName");
+        query("com.jpexs.decompiler.flash.abc.avm2.AVM2ConstantPool", "getString", "getInt", "getUInt", "getDouble",
+                "getNamespace", "getNamespaceSet", "getMultiname", "getStringCount", "getIntCount", "getUIntCount",
+                "getDoubleCount", "getNamespaceCount", "getNamespaceSetCount", "getMultinameCount");
+    }
+
+    private static void query(String type, String... names) {
+        QUERIES.computeIfAbsent(type, t -> new HashSet<>()).addAll(Arrays.asList(names));
+    }
+
+    // True if method is, or overrides, a method QUERIES lists for one of its supertypes
+    private static boolean isQuery(Method method) {
+        if (IMMUTABLE.contains(method.getDeclaringClass())) {
+            return true;
+        }
+        Deque<Class<?>> pending = new ArrayDeque<>();
+        pending.add(method.getDeclaringClass());
+        while (!pending.isEmpty()) {
+            Class<?> type = pending.poll();
+            Set<String> names = QUERIES.get(type.getName());
+            if (names != null && names.contains(method.getName()) && declares(type, method)) {
+                return true;
+            }
+            if (type.getSuperclass() != null) {
+                pending.add(type.getSuperclass());
+            }
+            pending.addAll(Arrays.asList(type.getInterfaces()));
+        }
+        return false;
+    }
+
+    // Only the listed signature counts, not other overloads a subtype adds under the same name
+    private static boolean declares(Class<?> type, Method method) {
+        try {
+            type.getMethod(method.getName(), method.getParameterTypes());
+            return true;
+        } catch (NoSuchMethodException e) {
+            return false;
+        }
+    }
+
+    // Prefer the public declaration of a method, so members of non-public classes stay callable
+    private static MethodHandle unreflect(Method method) {
+        Method accessible = publicDeclaration(method.getDeclaringClass(), method);
+        try {
+            return MethodHandles.publicLookup().unreflect(accessible != null ? accessible : method);
+        } catch (IllegalAccessException e) {
+            return reflective(method);
+        }
+    }
+
+    private static Method publicDeclaration(Class<?> clazz, Method method) {
+        if (clazz == null) {
+            return null;
+        }
+        if (Modifier.isPublic(clazz.getModifiers())) {
+            try {
+                return clazz.getMethod(method.getName(), method.getParameterTypes());
+            } catch (NoSuchMethodException e) {
+                // Not declared here, keep looking
+            }
+        }
+        for (Class<?> iface : clazz.getInterfaces()) {
+            Method found = publicDeclaration(iface, method);
+            if (found != null) {
+                return found;
+            }
+        }
+        return publicDeclaration(clazz.getSuperclass(), method);
+    }
+
+    // Last resort for members no lookup can see: route through core reflection
+    private static MethodHandle reflective(Executable executable) {
+        try {
+            Class<?>[] params = executable.getParameterTypes();
+            MethodHandle h;
+            MethodType type;
+            if (executable instanceof Method) {
+                Method method = (Method) executable;
+                h = LOOKUP.findVirtual(Method.class, "invoke", MethodType.methodType(Object.class, Object.class, Object[].class)).bindTo(method);
+                type = MethodType.methodType(method.getReturnType(), params).insertParameterTypes(0, Object.class);
+                if (Modifier.isStatic(method.getModifiers())) {
+                    type = type.dropParameterTypes(0, 1);
+                    h = MethodHandles.insertArguments(h, 0, (Object) null);
+                }
+            } else {
+                h = LOOKUP.findVirtual(Constructor.class, "newInstance", MethodType.methodType(Object.class, Object[].class)).bindTo(executable);
+                type = MethodType.methodType(executable.getDeclaringClass(), params);
+            }
+            h = h.asCollector(Object[].class, params.length);
+            return h.asType(type);
+        } catch (ReflectiveOperationException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static MethodHandle[] argumentFilters(Class<?>[] types) {
+        MethodHandle[] filters = new MethodHandle[types.length];
+        for (int i = 0; i < types.length; i++) {
+            filters[i] = argumentFilter(types[i]);
+        }
+        return filters;
+    }
+
+    // (LuaValue)T conversion for one parameter type
+    private static MethodHandle argumentFilter(Class<?> type) {
+        try {
+            if (type == int.class) {
+                return LOOKUP.findVirtual(LuaValue.class, "toint", MethodType.methodType(int.class));
+            } else if (type == double.class) {
+                return LOOKUP.findVirtual(LuaValue.class, "todouble", MethodType.methodType(double.class));
+            } else if (type == boolean.class) {
+                return LOOKUP.findVirtual(LuaValue.class, "toboolean", MethodType.methodType(boolean.class));
+            } else if (type == long.class) {
+                return LOOKUP.findVirtual(LuaValue.class, "tolong", MethodType.methodType(long.class));
+            } else if (type == float.class) {
+                return LOOKUP.findVirtual(LuaValue.class, "tofloat", MethodType.methodType(float.class));
+            } else if (type == short.class) {
+                return LOOKUP.findVirtual(LuaValue.class, "toshort", MethodType.methodType(short.class));
+            } else if (type == byte.class) {
+                return LOOKUP.findVirtual(LuaValue.class, "tobyte", MethodType.methodType(byte.class));
+            } else if (type == char.class) {
+                return LOOKUP.findStatic(Invoker.class, "tochar", MethodType.methodType(char.class, LuaValue.class));
+            } else if (type == String.class) {
+                return LOOKUP.findStatic(Invoker.class, "tostring", MethodType.methodType(String.class, LuaValue.class));
+            }
+            MethodHandle convert = LOOKUP.findStatic(Main.jpexsAutoLib.class, "convertLuaToJava",
+                    MethodType.methodType(Object.class, LuaValue.class, Class.class));
+            convert = MethodHandles.insertArguments(convert, 1, type);
+            return convert.asType(MethodType.methodType(type, LuaValue.class));
+        } catch (ReflectiveOperationException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    // Turn the target's return value into an Object, converting primitives to LuaValues here
+    private static MethodHandle resultFilter(MethodHandle h) {
+        Class<?> returnType = h.type().returnType();
+        try {
+            if (returnType == void.class) {
+                return MethodHandles.filterReturnValue(h, MethodHandles.constant(Object.class, LuaValue.NIL));
+            } else if (returnType == int.class || returnType == short.class || returnType == byte.class) {
+                h = h.asType(h.type().changeReturnType(int.class));
+                return filterResult(h, LOOKUP.findStatic(LuaValue.class, "valueOf", MethodType.methodType(LuaInteger.class, int.class)));
+            } else if (returnType == long.class) {
+                return filterResult(h, LOOKUP.findStatic(Invoker.class, "valueOf", MethodType.methodType(LuaValue.class, long.class)));
+            } else if (returnType == double.class || returnType == float.class) {
+                h = h.asType(h.type().changeReturnType(double.class));
+                return filterResult(h, LOOKUP.findStatic(LuaValue.class, "valueOf", MethodType.methodType(LuaNumber.class, double.class)));
+            } else if (returnType == boolean.class) {
+                return filterResult(h, LOOKUP.findStatic(LuaValue.class, "valueOf", MethodType.methodType(LuaBoolean.class, boolean.class)));
+            } else if (returnType == char.class) {
+                return filterResult(h, LOOKUP.findStatic(Invoker.class, "valueOf", MethodType.methodType(LuaValue.class, char.class)));
+            }
+            return h.asType(h.type().changeReturnType(Object.class));
+        } catch (ReflectiveOperationException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static MethodHandle filterResult(MethodHandle h, MethodHandle filter) {
+        h = MethodHandles.filterReturnValue(h, filter);
+        return h.asType(h.type().changeReturnType(Object.class));
+    }
+
+    private static char tochar(LuaValue value) {
+        String s = value.tojstring();
+        return s.length() > 0 ? s.charAt(0) : '\0';
+    }
+
+    private static String tostring(LuaValue value) {
+        return value.isnil() ? null : value.tojstring();
+    }
+
+    // Mirrors wrapObject, which hands every integral number to Lua as an int
+    private static LuaValue valueOf(long value) {
+        return LuaValue.valueOf((int) value);
+    }
+
+    private static LuaValue valueOf(char value) {
+        return LuaValue.valueOf(String.valueOf(value));
+    }
+}
@@ -0,0 +1,379 @@
+import org.luaj.vm2.*;
+import org.luaj.vm2.lib.*;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import com.jpexs.helpers.ByteArrayRange;
+
+// Binary data for Lua as a ByteBuffer userdata (heap, direct or memory-mapped), so SWF payloads
+// are read and written in bulk instead of one boxed number per byte. Indexes are 1-based and
+// absolute over [0, limit), independent of the buffer's position. Buffer methods use colon
+// syntax (buf:sub(1, 4)); any other key falls back to the ByteBuffer's Java members.
+final class LuaBuffer {
+    private LuaBuffer() {
+    }
+
+    // Add buffer methods, byte indexing, __len and __tostring to a ByteBuffer class metatable
+    static void install(Main.jpexsAutoLib lib, LuaTable mt) {
+        LuaValue members = mt.rawget(LuaValue.INDEX);
+        LuaTable methods = methods(lib);
+
+        mt.set(LuaValue.INDEX, new TwoArgFunction() {
+            @Override
+            public LuaValue call(LuaValue self, LuaValue key) {
+                if (key.type() == LuaValue.TNUMBER) {
+                    ByteBuffer buffer = check(self);
+                    int index = key.toint() - 1;
+                    return index >= 0 && index < buffer.limit() ? LuaValue.valueOf(buffer.get(index) & 0xFF) : LuaValue.NIL;
+                }
+                LuaValue method = methods.rawget(key);
+                return method.isnil() ? members.call(self, key) : method;
+            }
+        });
+
+        mt.set(LuaValue.NEWINDEX, new ThreeArgFunction() {
+            @Override
+            public LuaValue call(LuaValue self, LuaValue key, LuaValue value) {
+                ByteBuffer buffer = check(self);
+                lib.noteWrite(self);
+                buffer.put(checkIndex(buffer, key.checkint(), 1), (byte) value.checkint());
+                return LuaValue.NIL;
+            }
+        });
+
+        mt.set(LuaValue.LEN, new OneArgFunction() {
+            @Override
+            public LuaValue call(LuaValue self) {
+                return LuaValue.valueOf(check(self).limit());
+            }
+        });
+
+        mt.set(LuaValue.TOSTRING, new OneArgFunction() {
+            @Override
+            public LuaValue call(LuaValue self) {
+                ByteBuffer buffer = check(self);
+                return LuaValue.valueOf("buffer(" + buffer.limit() + (buffer.isDirect() ? ", direct)" : ")"));
+            }
+        });
+    }
+
+    // The jpexs.buffer library: constructors and file helpers
+    static LuaTable library(Main.jpexsAutoLib lib) {
+        LuaTable library = new LuaTable();
+
+        // buffer.new(size [, direct])
+        library.set("new", new TwoArgFunction() {
+            @Override
+            public LuaValue call(LuaValue size, LuaValue direct) {
+                int capacity = size.checkint();
+                return lib.wrapObject(direct.toboolean() ? ByteBuffer.allocateDirect(capacity) : ByteBuffer.allocate(capacity));
+            }
+        });
+
+        // buffer.fromString(s): copies the string bytes once
+        library.set("fromString", new OneArgFunction() {
+            @Override
+            public LuaValue call(LuaValue s) {
+                return lib.wrapObject(ByteBuffer.wrap(toByteArray(s.checkstring())));
+            }
+        });
+
+        // buffer.map(path [, writable]): memory-maps a whole file
+        library.set("map", new TwoArgFunction() {
+            @Override
+            public LuaValue call(LuaValue path, LuaValue writable) {
+                boolean write = writable.toboolean();
+                try (FileChannel channel = write
+                        ? FileChannel.open(Paths.get(lib.resolve(path.checkjstring())), StandardOpenOption.READ, StandardOpenOption.WRITE)
+                        : FileChannel.open(Paths.get(lib.resolve(path.checkjstring())), StandardOpenOption.READ)) {
+                    return lib.wrapObject(channel.map(write ? FileChannel.MapMode.READ_WRITE : FileChannel.MapMode.READ_ONLY, 0, channel.size()));
+                } catch (IOException e) {
+                    throw new LuaError("Error mapping file: " + e.getMessage());
+                }
+            }
+        });
+
+        // buffer.writeFile(path, buf): writes the whole buffer through a FileChannel
+        library.set("writeFile", new TwoArgFunction() {
+            @Override
+            public LuaValue call(LuaValue path, LuaValue buf) {
+                ByteBuffer source = check(buf).duplicate();
+                source.clear();
+                try (FileChannel channel = FileChannel.open(Paths.get(lib.resolve(path.checkjstring())),
+                        StandardOpenOption.WRITE, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING)) {
+                    while (source.hasRemaining()) {
+                        channel.write(source);
+                    }
+                    return LuaValue.NIL;
+                } catch (IOException e) {
+                    throw new LuaError("Error writing file: " + e.getMessage());
+                }
+            }
+        });
+
+        return library;
+    }
+
+    // Parameter types that take a buffer or Lua string in bulk
+    static boolean isBinaryType(Class<?> type) {
+        return type == byte[].class || type == ByteArrayRange.class || type == ByteBuffer.class;
+    }
+
+    // Convert a buffer or Lua string for a binary parameter; null when the value is neither
+    static Object toJava(LuaValue value, Class<?> type) {
+        if (value.type() == LuaValue.TSTRING) {
+            byte[] bytes = toByteArray(value.checkstring());
+            if (type == byte[].class) {
+                return bytes;
+            }
+            return type == ByteArrayRange.class ? new ByteArrayRange(bytes) : ByteBuffer.wrap(bytes);
+        }
+        if (value.isuserdata() && value.touserdata() instanceof ByteBuffer) {
+            ByteBuffer buffer = (ByteBuffer) value.touserdata();
+            if (type == byte[].class) {
+                return toByteArray(buffer);
+            } else if (type == ByteArrayRange.class) {
+                return buffer.hasArray()
+                        ? new ByteArrayRange(buffer.array(), buffer.arrayOffset(), buffer.limit())
+                        : new ByteArrayRange(toByteArray(buffer));
+            }
+            return buffer;
+        }
+        return null;
+    }
+
+    // Live view of a JPEXS byte range
+    static ByteBuffer wrap(ByteArrayRange range) {
+        return ByteBuffer.wrap(range.getArray(), range.getPos(), range.getLength()).slice();
+    }
+
+    // Copy a buffer's [0, limit) into a byte[], reusing the backing array when it matches exactly
+    static byte[] toByteArray(ByteBuffer buffer) {
+        if (buffer.hasArray() && buffer.arrayOffset() == 0 && buffer.limit() == buffer.array().length) {
+            return buffer.array();
+        }
+        byte[] bytes = new byte[buffer.limit()];
+        buffer.get(0, bytes);
+        return bytes;
+    }
+
+    static byte[] toByteArray(LuaString s) {
+        byte[] bytes = new byte[s.m_length];
+        s.copyInto(0, bytes, 0, bytes.length);
+        return bytes;
+    }
+
+    private static LuaTable methods(Main.jpexsAutoLib lib) {
+        LuaTable methods = new LuaTable();
+
+        methods.set("len", new OneArgFunction() {
+            @Override
+            public LuaValue call(LuaValue self) {
+                return LuaValue.valueOf(check(self).limit());
+            }
+        });
+
+        methods.set("isDirect", new OneArgFunction() {
+            @Override
+            public LuaValue call(LuaValue self) {
+                return LuaValue.valueOf(check(self).isDirect());
+            }
+        });
+
+        // buf:get(i) and buf:set(i, byte)
+        methods.set("get", new TwoArgFunction() {
+            @Override
+            public LuaValue call(LuaValue self, LuaValue index) {
+                ByteBuffer buffer = check(self);
+                return LuaValue.valueOf(buffer.get(checkIndex(buffer, index.checkint(), 1)) & 0xFF);
+            }
+        });
+
+        methods.set("set", new ThreeArgFunction() {
+            @Override
+            public LuaValue call(LuaValue self, LuaValue index, LuaValue value) {
+                ByteBuffer buffer = check(self);
+                lib.noteWrite(self);
+                buffer.put(checkIndex(buffer, index.checkint(), 1), (byte) value.checkint());
+                return self;
+            }
+        });
+
+        // Little-endian integers, as used throughout the SWF format
+        methods.set("u16", new TwoArgFunction() {
+            @Override
+            public LuaValue call(LuaValue self, LuaValue index) {
+                ByteBuffer buffer = check(self);
+                return LuaValue.valueOf((int) readLittleEndian(buffer, checkIndex(buffer, index.checkint(), 2), 2));
+            }
+        });
+
+        methods.set("u32", new TwoArgFunction() {
+            @Override
+            public LuaValue call(LuaValue self, LuaValue index) {
+                ByteBuffer buffer = check(self);
+                return LuaValue.valueOf((double) readLittleEndian(buffer, checkIndex(buffer, index.checkint(), 4), 4));
+            }
+        });
+
+        methods.set("setU16", new ThreeArgFunction() {
+            @Override
+            public LuaValue call(LuaValue self, LuaValue index, LuaValue value) {
+                ByteBuffer buffer = check(self);
+                lib.noteWrite(self);
+                writeLittleEndian(buffer, checkIndex(buffer, index.checkint(), 2), 2, value.checklong());
+                return self;
+            }
+        });
+
+        methods.set("setU32", new ThreeArgFunction() {
+            @Override
+            public LuaValue call(LuaValue self, LuaValue index, LuaValue value) {
+                ByteBuffer buffer = check(self);
+                lib.noteWrite(self);
+                writeLittleEndian(buffer, checkIndex(buffer, index.checkint(), 4), 4, value.checklong());
+                return self;
+            }
+        });
+
+        // buf:sub(i [, j]) -> Lua string, with string.sub index rules
+        methods.set("sub", new ThreeArgFunction() {
+            @Override
+            public LuaValue call(LuaValue self, LuaValue i, LuaValue j) {
+                ByteBuffer buffer = check(self);
+                int[] range = range(buffer.limit(), i.optint(1), j.optint(-1));
+                byte[] bytes = new byte[range[1] - range[0]];
+                buffer.get(range[0], bytes);
+                return LuaValue.valueOf(bytes);
+            }
+        });
+
+        methods.set("tostring", new OneArgFunction() {
+            @Override
+            public LuaValue call(LuaValue self) {
+                ByteBuffer buffer = check(self);
+                byte[] bytes = new byte[buffer.limit()];
+                buffer.get(0, bytes);
+                return LuaValue.valueOf(bytes);
+            }
+        });
+
+        // buf:slice(i [, j]) -> buffer sharing the same memory
+        methods.set("slice", new ThreeArgFunction() {
+            @Override
+            public LuaValue call(LuaValue self, LuaValue i, LuaValue j) {
+                ByteBuffer buffer = check(self);
+                int[] range = range(buffer.limit(), i.optint(1), j.optint(-1));
+                return lib.wrapObject(buffer.slice(range[0], range[1] - range[0]), Main.jpexsAutoLib.ownerOf(self));
+            }
+        });
+
+        methods.set("copy", new OneArgFunction() {
+            @Override
+            public LuaValue call(LuaValue self) {
+                ByteBuffer buffer = check(self);
+                byte[] bytes = new byte[buffer.limit()];
+                buffer.get(0, bytes);
+                return lib.wrapObject(ByteBuffer.wrap(bytes));
+            }
+        });
+
+        // buf:put(i, data): bulk copy of a string or another buffer starting at index i
+        methods.set("put", new ThreeArgFunction() {
+            @Override
+            public LuaValue call(LuaValue self, LuaValue index, LuaValue data) {
+                ByteBuffer buffer = check(self);
+                lib.noteWrite(self);
+                if (data.type() == LuaValue.TSTRING) {
+                    LuaString str = data.checkstring();
+                    buffer.put(checkIndex(buffer, index.checkint(), str.m_length), str.m_bytes, str.m_offset, str.m_length);
+                } else {
+                    ByteBuffer source = check(data);
+                    buffer.put(checkIndex(buffer, index.checkint(), source.limit()), source, 0, source.limit());
+                }
+                return self;
+            }
+        });
+
+        // buf:find(needle [, init]) -> 1-based index of a byte string or buffer, or nil
+        methods.set("find", new ThreeArgFunction() {
+            @Override
+            public LuaValue call(LuaValue self, LuaValue needle, LuaValue init) {
+                ByteBuffer buffer = check(self);
+                byte[] pattern = needle.type() == LuaValue.TSTRING ? toByteArray(needle.checkstring()) : toByteArray(check(needle));
+                int found = indexOf(buffer, pattern, Math.max(0, init.optint(1) - 1));
+                return found < 0 ? LuaValue.NIL : LuaValue.valueOf(found + 1);
+            }
+        });
+
+        return methods;
+    }
+
+    // Byte-wise so the shared buffer's byte order is never touched
+    private static long readLittleEndian(ByteBuffer buffer, int offset, int width) {
+        long value = 0;
+        for (int i = width - 1; i >= 0; i--) {
+            value = (value << 8) | (buffer.get(offset + i) & 0xFF);
+        }
+        return value;
+    }
+
+    private static void writeLittleEndian(ByteBuffer buffer, int offset, int width, long value) {
+        for (int i = 0; i < width; i++) {
+            buffer.put(offset + i, (byte) (value >>> (8 * i)));
+        }
+    }
+
+    private static int indexOf(ByteBuffer buffer, byte[] pattern, int from) {
+        int last = buffer.limit() - pattern.length;
+        if (pattern.length == 0) {
+            return from <= buffer.limit() ? from : -1;
+        }
+        byte first = pattern[0];
+        outer:
+        for (int i = from; i <= last; i++) {
+            if (buffer.get(i) != first) {
+                continue;
+            }
+            for (int k = 1; k < pattern.length; k++) {
+                if (buffer.get(i + k) != pattern[k]) {
+                    continue outer;
+                }
+            }
+            return i;
+        }
+        return -1;
+    }
+
+    // Convert string.sub style (i, j) into a zero-based [start, end) range clamped to the buffer
+    private static int[] range(int length, int i, int j) {
+        if (i < 0) {
+            i = Math.max(length + i + 1, 1);
+        } else if (i == 0) {
+            i = 1;
+        }
+        if (j < 0) {
+            j = length + j + 1;
+        } else if (j > length) {
+            j = length;
+        }
+        return i > j ? new int[] { 0, 0 } : new int[] { i - 1, j };
+    }
+
+    private static int checkIndex(ByteBuffer buffer, int index, int width) {
+        if (index < 1 || index - 1 + width > buffer.limit()) {
+            throw new LuaError("Buffer index out of range: " + index + " (length " + buffer.limit() + ")");
+        }
+        return index - 1;
+    }
+
+    private static ByteBuffer check(LuaValue value) {
+        Object obj = value.isuserdata() ? value.touserdata() : null;
+        if (!(obj instanceof ByteBuffer)) {
+            throw new LuaError("buffer expected, got " + value.typename());
+        }
+        return (ByteBuffer) obj;
+    }
+}
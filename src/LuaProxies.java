@@ -0,0 +1,316 @@
+import org.luaj.vm2.*;
+import org.luaj.vm2.lib.*;
+import java.lang.reflect.Array;
+import java.lang.reflect.Modifier;
+import java.util.*;
+
+// Live Lua views of Java lists, maps, arrays and other iterables. Elements are wrapped only
+// when a script reads them, writes go straight to the Java object, and any key that is not
+// an element falls back to the regular class members (so list.size() keeps working).
+final class LuaProxies {
+    static final LuaString PAIRS = LuaValue.valueOf("__pairs");
+    static final LuaString IPAIRS = LuaValue.valueOf("__ipairs");
+
+    private LuaProxies() {
+    }
+
+    // Whether instances of this class get proxy metamethods on top of their members
+    static boolean isProxied(Class<?> clazz) {
+        return clazz.isArray() || Iterable.class.isAssignableFrom(clazz) || Map.class.isAssignableFrom(clazz);
+    }
+
+    // Add element access, __len and __pairs/__ipairs to a class metatable
+    static void install(Main.jpexsAutoLib lib, Class<?> clazz, LuaTable mt) {
+        LuaValue members = mt.rawget(LuaValue.INDEX);
+        LuaValue memberSetter = mt.rawget(LuaValue.NEWINDEX);
+
+        if (clazz.isArray()) {
+            installArray(lib, clazz.getComponentType(), mt, members, memberSetter);
+        } else if (List.class.isAssignableFrom(clazz)) {
+            installList(lib, mt, members, memberSetter);
+        } else if (Map.class.isAssignableFrom(clazz)) {
+            installMap(lib, mt, members);
+        } else {
+            installIterable(lib, mt);
+        }
+    }
+
+    // Replace a base function such as pairs with one that honors a metamethod, as Lua 5.2 does
+    static LuaValue metaAware(LuaValue base, LuaString tag) {
+        return new VarArgFunction() {
+            @Override
+            public Varargs invoke(Varargs args) {
+                LuaValue handler = args.arg1().metatag(tag);
+                return handler.isnil() ? base.invoke(args) : handler.invoke(args);
+            }
+        };
+    }
+
+    private static void installList(Main.jpexsAutoLib lib, LuaTable mt, LuaValue members, LuaValue memberSetter) {
+        mt.set(LuaValue.INDEX, new TwoArgFunction() {
+            @Override
+            public LuaValue call(LuaValue self, LuaValue key) {
+                if (key.type() != LuaValue.TNUMBER) {
+                    return members.call(self, key);
+                }
+                List<?> list = (List<?>) self.touserdata();
+                int index = key.toint();
+                return index >= 1 && index <= list.size() ? lib.wrapObject(list.get(index - 1), Main.jpexsAutoLib.ownerOf(self)) : LuaValue.NIL;
+            }
+        });
+
+        mt.set(LuaValue.NEWINDEX, new ThreeArgFunction() {
+            @Override
+            @SuppressWarnings("unchecked")
+            public LuaValue call(LuaValue self, LuaValue key, LuaValue value) {
+                if (key.type() != LuaValue.TNUMBER) {
+                    return memberSetter.call(self, key, value);
+                }
+                List<Object> list = (List<Object>) self.touserdata();
+                int index = key.toint();
+                int size = list.size();
+                lib.noteWrite(self);
+
+                // Same shape rules as a Lua sequence: assign, append at #t+1, or clear the last slot
+                if (value.isnil() && index == size) {
+                    list.remove(index - 1);
+                } else if (index >= 1 && index <= size) {
+                    list.set(index - 1, element(value, list.get(0)));
+                } else if (index == size + 1) {
+                    list.add(element(value, size > 0 ? list.get(0) : null));
+                } else {
+                    throw new LuaError("List index out of range: " + index + " (size " + size + ")");
+                }
+                return LuaValue.NIL;
+            }
+        });
+
+        mt.set(LuaValue.LEN, new OneArgFunction() {
+            @Override
+            public LuaValue call(LuaValue self) {
+                return LuaValue.valueOf(((List<?>) self.touserdata()).size());
+            }
+        });
+
+        installIterators(lib, mt);
+    }
+
+    // Java value to store in a list or map that already holds sample (null if it is empty).
+    // Tables become a List when they are sequences and a Map otherwise. When sample's class is
+    // final, as for String and the boxed numbers, the value must convert to that class, so a
+    // list of Integers never ends up holding a Double. A value that doesn't convert, such as a
+    // function, is an error rather than a stored null.
+    private static Object element(LuaValue value, Object sample) {
+        if (value.isnil()) {
+            return null;
+        }
+        Class<?> type = sample != null && Modifier.isFinal(sample.getClass().getModifiers()) ? sample.getClass() : Object.class;
+        Object element = null;
+        if (value.istable()) {
+            element = Main.jpexsAutoLib.convertLuaToJava(value, isSequence((LuaTable) value) ? List.class : Map.class);
+        } else if (fits(value, type)) {
+            element = Main.jpexsAutoLib.convertLuaToJava(value, type);
+        }
+        if (element == null || !type.isInstance(element)) {
+            throw new LuaError("Can't store a " + value.typename() + " in a collection of " + type.getSimpleName());
+        }
+        return element;
+    }
+
+    // Whether a Lua value converts to type without losing anything; Java objects are checked
+    // after conversion instead
+    private static boolean fits(LuaValue value, Class<?> type) {
+        if (type == Object.class || value.isuserdata()) {
+            return true;
+        }
+        if (Number.class.isAssignableFrom(type)) {
+            return value.type() == LuaValue.TNUMBER
+                    && (type == Double.class || type == Float.class || value.todouble() == Math.rint(value.todouble()));
+        }
+        if (type == Boolean.class) {
+            return value.isboolean();
+        }
+        if (type == String.class || type == Character.class) {
+            return value.type() == LuaValue.TSTRING || value.type() == LuaValue.TNUMBER;
+        }
+        return true;
+    }
+
+    // True if every key of table is in 1..#table, as for {} and {a, b}
+    private static boolean isSequence(LuaTable table) {
+        int count = 0;
+        LuaValue key = LuaValue.NIL;
+        while (!(key = table.next(key).arg1()).isnil()) {
+            count++;
+        }
+        return count == table.length();
+    }
+
+    private static void installMap(Main.jpexsAutoLib lib, LuaTable mt, LuaValue members) {
+        // Entries take precedence over members, so map.size is only a method when there is no "size" key
+        mt.set(LuaValue.INDEX, new TwoArgFunction() {
+            @Override
+            public LuaValue call(LuaValue self, LuaValue key) {
+                Map<?, ?> map = (Map<?, ?>) self.touserdata();
+                Object javaKey = Main.jpexsAutoLib.convertLuaToJava(key, Object.class);
+                if (map.containsKey(javaKey)) {
+                    return lib.wrapObject(map.get(javaKey), Main.jpexsAutoLib.ownerOf(self));
+                }
+                return members.call(self, key);
+            }
+        });
+
+        mt.set(LuaValue.NEWINDEX, new ThreeArgFunction() {
+            @Override
+            @SuppressWarnings("unchecked")
+            public LuaValue call(LuaValue self, LuaValue key, LuaValue value) {
+                Map<Object, Object> map = (Map<Object, Object>) self.touserdata();
+                lib.noteWrite(self);
+                if (value.isnil()) {
+                    map.remove(Main.jpexsAutoLib.convertLuaToJava(key, Object.class));
+                } else {
+                    Map.Entry<Object, Object> first = map.isEmpty() ? null : map.entrySet().iterator().next();
+                    map.put(element(key, first != null ? first.getKey() : null), element(value, first != null ? first.getValue() : null));
+                }
+                return LuaValue.NIL;
+            }
+        });
+
+        mt.set(LuaValue.LEN, new OneArgFunction() {
+            @Override
+            public LuaValue call(LuaValue self) {
+                return LuaValue.valueOf(((Map<?, ?>) self.touserdata()).size());
+            }
+        });
+
+        mt.set(PAIRS, iteratorTriple(new OneArgFunction() {
+            @Override
+            public LuaValue call(LuaValue self) {
+                Iterator<? extends Map.Entry<?, ?>> entries = ((Map<?, ?>) self.touserdata()).entrySet().iterator();
+                Object owner = Main.jpexsAutoLib.ownerOf(self);
+                return new VarArgFunction() {
+                    @Override
+                    public Varargs invoke(Varargs args) {
+                        if (!entries.hasNext()) {
+                            return LuaValue.NIL;
+                        }
+                        Map.Entry<?, ?> entry = entries.next();
+                        return LuaValue.varargsOf(lib.wrapObject(entry.getKey(), owner), lib.wrapObject(entry.getValue(), owner));
+                    }
+                };
+            }
+        }));
+    }
+
+    private static void installArray(Main.jpexsAutoLib lib, Class<?> componentType, LuaTable mt, LuaValue members, LuaValue memberSetter) {
+        mt.set(LuaValue.INDEX, new TwoArgFunction() {
+            @Override
+            public LuaValue call(LuaValue self, LuaValue key) {
+                if (key.type() != LuaValue.TNUMBER) {
+                    return members.call(self, key);
+                }
+                Object array = self.touserdata();
+                int index = key.toint();
+                return index >= 1 && index <= Array.getLength(array) ? lib.wrapObject(Array.get(array, index - 1), Main.jpexsAutoLib.ownerOf(self)) : LuaValue.NIL;
+            }
+        });
+
+        mt.set(LuaValue.NEWINDEX, new ThreeArgFunction() {
+            @Override
+            public LuaValue call(LuaValue self, LuaValue key, LuaValue value) {
+                if (key.type() != LuaValue.TNUMBER) {
+                    return memberSetter.call(self, key, value);
+                }
+                Object array = self.touserdata();
+                int index = key.toint();
+                if (index < 1 || index > Array.getLength(array)) {
+                    throw new LuaError("Array index out of range: " + index + " (length " + Array.getLength(array) + ")");
+                }
+                Object element = Main.jpexsAutoLib.convertLuaToJava(value, componentType);
+                if (element == null && !value.isnil()) {
+                    throw new LuaError("Can't store a " + value.typename() + " in a " + componentType.getSimpleName() + " array");
+                }
+                lib.noteWrite(self);
+                Array.set(array, index - 1, element);
+                return LuaValue.NIL;
+            }
+        });
+
+        mt.set(LuaValue.LEN, new OneArgFunction() {
+            @Override
+            public LuaValue call(LuaValue self) {
+                return LuaValue.valueOf(Array.getLength(self.touserdata()));
+            }
+        });
+
+        OneArgFunction indexed = new OneArgFunction() {
+            @Override
+            public LuaValue call(LuaValue self) {
+                Object array = self.touserdata();
+                Object owner = Main.jpexsAutoLib.ownerOf(self);
+                return new VarArgFunction() {
+                    @Override
+                    public Varargs invoke(Varargs args) {
+                        int index = args.arg(2).toint();
+                        if (index >= Array.getLength(array)) {
+                            return LuaValue.NIL;
+                        }
+                        return LuaValue.varargsOf(LuaValue.valueOf(index + 1), lib.wrapObject(Array.get(array, index), owner));
+                    }
+                };
+            }
+        };
+        mt.set(PAIRS, iteratorTriple(indexed));
+        mt.set(IPAIRS, iteratorTriple(indexed));
+    }
+
+    private static void installIterable(Main.jpexsAutoLib lib, LuaTable mt) {
+        mt.set(LuaValue.LEN, new OneArgFunction() {
+            @Override
+            public LuaValue call(LuaValue self) {
+                Object obj = self.touserdata();
+                if (obj instanceof Collection) {
+                    return LuaValue.valueOf(((Collection<?>) obj).size());
+                }
+                throw new LuaError("attempt to get length of " + obj.getClass().getName());
+            }
+        });
+
+        installIterators(lib, mt);
+    }
+
+    // pairs and ipairs both walk the Java iterator, numbering elements from 1
+    private static void installIterators(Main.jpexsAutoLib lib, LuaTable mt) {
+        OneArgFunction sequential = new OneArgFunction() {
+            @Override
+            public LuaValue call(LuaValue self) {
+                Iterator<?> iterator = ((Iterable<?>) self.touserdata()).iterator();
+                Object owner = Main.jpexsAutoLib.ownerOf(self);
+                return new VarArgFunction() {
+                    private int index;
+
+                    @Override
+                    public Varargs invoke(Varargs args) {
+                        if (!iterator.hasNext()) {
+                            return LuaValue.NIL;
+                        }
+                        return LuaValue.varargsOf(LuaValue.valueOf(++index), lib.wrapObject(iterator.next(), owner));
+                    }
+                };
+            }
+        };
+        mt.set(PAIRS, iteratorTriple(sequential));
+        mt.set(IPAIRS, iteratorTriple(sequential));
+    }
+
+    // Metamethod returning the generic-for triple (step function, self, initial control value)
+    private static LuaValue iteratorTriple(OneArgFunction stepFactory) {
+        return new VarArgFunction() {
+            @Override
+            public Varargs invoke(Varargs args) {
+                LuaValue self = args.arg1();
+                return LuaValue.varargsOf(stepFactory.call(self), self, LuaValue.ZERO);
+            }
+        };
+    }
+}
@@ -1,21 +1,50 @@
 import org.luaj.vm2.*;
 import org.luaj.vm2.lib.*;
 import org.luaj.vm2.lib.jse.*;
-import java.io.FileInputStream;
 import java.io.IOException;
+import java.lang.invoke.MethodHandle;
 import java.lang.reflect.*;
+import java.nio.ByteBuffer;
+import java.nio.file.Path;
+import java.nio.file.Paths;
 import java.util.*;
 import com.jpexs.decompiler.flash.SWF;
 import com.jpexs.decompiler.flash.SwfOpenException;
+import com.jpexs.decompiler.flash.abc.ABC;
+import com.jpexs.decompiler.flash.tags.Tag;
+import com.jpexs.decompiler.flash.timeline.Timelined;
+import com.jpexs.helpers.ByteArrayRange;
 
 public class Main {
 
     public static void main(String[] args) {
-        // Create a Lua environment
-        Globals globals = JsePlatform.standardGlobals();
+        // Run one script over many SWF files in parallel
+        if (args.length > 0 && args[0].equals("batch")) {
+            System.exit(BatchRunner.run(Arrays.copyOfRange(args, 1, args.length)));
+        }
+
+        // Apply every mod in a manifest, parsing and saving each target SWF once
+        if (args.length > 0 && args[0].equals("pipeline")) {
+            System.exit(ModPipeline.run(Arrays.copyOfRange(args, 1, args.length)));
+        }
+
+        // Turn a mod script into a binary patch, or install one
+        if (args.length > 0 && args[0].equals("compile")) {
+            System.exit(PatchCompiler.run(Arrays.copyOfRange(args, 1, args.length)));
+        } else if (args.length > 0 && args[0].equals("apply")) {
+            System.exit(PatchApplier.run(Arrays.copyOfRange(args, 1, args.length)));
+        }
+
+        // Keep a warm JVM resident, or send a script to one
+        if (args.length > 0 && args[0].equals("serve")) {
+            System.exit(ScriptServer.serve(Arrays.copyOfRange(args, 1, args.length)));
+        } else if (args.length > 0 && args[0].equals("run")) {
+            System.exit(ScriptServer.client(Arrays.copyOfRange(args, 1, args.length)));
+        }
 
-        // Register our auto-binding library
-        globals.load(new jpexsAutoLib(globals));
+        // Create a Lua environment with our auto-binding library
+        jpexsAutoLib lib = createLibrary();
+        Globals globals = lib.globals();
 
         // Path to your Lua script file
         String luaScriptPath = args.length > 0 ? args[0] : "C:/Users/bur/Downloads/script.lua";
@@ -23,21 +52,92 @@ public class Main {
         try {
             // Load and execute the Lua script from file
             globals.loadfile(luaScriptPath).call();
+            lib.release();
+            if (ScriptCache.TIMING) {
+                System.err.println(ScriptCache.report());
+                System.err.println(SwfCache.report());
+            }
         } catch (Exception e) {
             System.err.println("Error loading Lua script: " + e.getMessage());
             e.printStackTrace();
         }
     }
 
+    // Standard Lua globals with the jpexs library registered; not shareable between threads
+    static Globals createGlobals() {
+        return createLibrary().globals();
+    }
+
+    // Same, keeping hold of the library so its SWFs can be released after the script
+    static jpexsAutoLib createLibrary() {
+        Globals globals = JsePlatform.standardGlobals();
+        jpexsAutoLib lib = new jpexsAutoLib(globals);
+        globals.load(lib);
+        ScriptCache.install(globals);
+        return lib;
+    }
+
     // Library that automatically binds JPEXS classes to Lua
-    public static class jpexsAutoLib extends TwoArgFunction {
+    public static final class jpexsAutoLib extends TwoArgFunction {
         private Globals globals;
-        private Set<Class<?>> processedClasses = new HashSet<>();
-        private Map<Class<?>, Class<?>> primitiveWrappers = new HashMap<>();
+        private static final LuaString NEW = LuaValue.valueOf("new");
+        private static final Map<Class<?>, Class<?>> primitiveWrappers = new HashMap<>();
+        private Map<Class<?>, LuaTable> metatables = new HashMap<>();
+        // Class tables handed out by import, packages and jpexsClasses, built on first use
+        private final Map<Class<?>, LuaTable> classTables = new HashMap<>();
+        private WrapperCache wrappers = new WrapperCache();
+        // SWFs checked out of SwfCache by this library, returned by closeSWF or release
+        private final Map<SWF, SwfCache.Handle> openSwfs = new IdentityHashMap<>();
+        // SWFs a script wrote to through the bridge; only the others go back to SwfCache for reuse
+        private final Set<SWF> writtenSwfs = Collections.newSetFromMap(new IdentityHashMap<>());
+        // SWFs written through objects no tag is known to own; saving one re-serializes every tag
+        private final Set<SWF> unownedWrites = Collections.newSetFromMap(new IdentityHashMap<>());
+        // SWFs owned by the caller (the mod pipeline), returned by openSWF for their path instead of parsing
+        private final Map<String, SWF> sharedSwfs = new HashMap<>();
+        // Base for relative paths given to the library; null means the JVM's working directory
+        private Path directory;
+        // jpexs.async and friends, set up with the library
+        private AsyncTasks async;
+        // Methods looked up through __index and not called yet, as receiver/member pairs, most
+        // recent last, per coroutine. Method functions are shared by all instances of a class,
+        // so one called as obj.method(...) takes its receiver from here
+        private final Map<LuaThread, ArrayDeque<Object>> lookups = new WeakHashMap<>();
+        private LuaThread lookupThread;
+        private ArrayDeque<Object> lookupStack;
+        // Pairs kept per coroutine; older lookups that were never called are dropped
+        private static final int MAX_LOOKUPS = 64;
+
+        // Shared by every class metatable, since Lua only calls __eq when both sides use the same handler
+        private final LuaValue equalsFunction = new TwoArgFunction() {
+            @Override
+            public LuaValue call(LuaValue a, LuaValue b) {
+                return LuaValue.valueOf(Objects.equals(a.touserdata(), b.touserdata()));
+            }
+        };
 
-        public jpexsAutoLib(Globals globals) {
-            this.globals = globals;
+        private final LuaValue toStringFunction = new OneArgFunction() {
+            @Override
+            public LuaValue call(LuaValue self) {
+                return LuaValue.valueOf(String.valueOf(self.touserdata()));
+            }
+        };
+
+        // Short names available through the jpexsClasses global
+        private static final Map<String, String> SHORT_NAMES = new HashMap<>();
+
+        static {
+            SHORT_NAMES.put("AVM2Instructions", "com.jpexs.decompiler.flash.abc.avm2.instructions.AVM2Instructions");
+            SHORT_NAMES.put("AVM2Code", "com.jpexs.decompiler.flash.abc.avm2.AVM2Code");
+            SHORT_NAMES.put("ActionAdd", "com.jpexs.decompiler.flash.action.swf4.ActionAdd");
+            SHORT_NAMES.put("ActionSubtract", "com.jpexs.decompiler.flash.action.swf4.ActionSubtract");
+            SHORT_NAMES.put("ActionMultiply", "com.jpexs.decompiler.flash.action.swf4.ActionMultiply");
+            SHORT_NAMES.put("ActionDivide", "com.jpexs.decompiler.flash.action.swf4.ActionDivide");
+            SHORT_NAMES.put("ActionModulo", "com.jpexs.decompiler.flash.action.swf5.ActionModulo");
+            SHORT_NAMES.put("ActionAdd2", "com.jpexs.decompiler.flash.action.swf5.ActionAdd2");
+            SHORT_NAMES.put("ActionPush", "com.jpexs.decompiler.flash.action.swf4.ActionPush");
+        }
 
+        static {
             // Initialize primitive type mappings
             primitiveWrappers.put(boolean.class, Boolean.class);
             primitiveWrappers.put(byte.class, Byte.class);
@@ -48,33 +148,29 @@ public class Main {
             primitiveWrappers.put(long.class, Long.class);
             primitiveWrappers.put(short.class, Short.class);
             primitiveWrappers.put(void.class, Void.class);
+        }
 
-            // Pre-load important JPEXS classes
-            try {
-                LuaTable jpexsTable = new LuaTable();
-
-                // Add AVM2Instructions class
-                Class<?> avm2InstructionsClass = Class.forName("com.jpexs.decompiler.flash.abc.avm2.instructions.AVM2Instructions");
-                jpexsTable.set("AVM2Instructions", wrapClass(avm2InstructionsClass));
-
-                // Add AVM2Code class
-                Class<?> avm2CodeClass = Class.forName("com.jpexs.decompiler.flash.abc.avm2.AVM2Code");
-                jpexsTable.set("AVM2Code", wrapClass(avm2CodeClass));
-
-                // Add ActionScript 1/2 classes
-                jpexsTable.set("ActionAdd", wrapClass(Class.forName("com.jpexs.decompiler.flash.action.swf4.ActionAdd")));
-                jpexsTable.set("ActionSubtract", wrapClass(Class.forName("com.jpexs.decompiler.flash.action.swf4.ActionSubtract")));
-                jpexsTable.set("ActionMultiply", wrapClass(Class.forName("com.jpexs.decompiler.flash.action.swf4.ActionMultiply")));
-                jpexsTable.set("ActionDivide", wrapClass(Class.forName("com.jpexs.decompiler.flash.action.swf4.ActionDivide")));
-                jpexsTable.set("ActionModulo", wrapClass(Class.forName("com.jpexs.decompiler.flash.action.swf5.ActionModulo")));
-                jpexsTable.set("ActionAdd2", wrapClass(Class.forName("com.jpexs.decompiler.flash.action.swf5.ActionAdd2")));
-                jpexsTable.set("ActionPush", wrapClass(Class.forName("com.jpexs.decompiler.flash.action.swf4.ActionPush")));
+        public jpexsAutoLib(Globals globals) {
+            this.globals = globals;
 
-                globals.set("jpexsClasses", jpexsTable);
-            } catch (ClassNotFoundException e) {
-                System.err.println("Error loading JPEXS classes: " + e.getMessage());
-                e.printStackTrace();
-            }
+            // Classes scripts have always been able to reach by short name; each one is
+            // loaded and wrapped the first time a script reads it
+            LuaTable jpexsTable = new LuaTable();
+            LuaTable classesMeta = new LuaTable();
+            classesMeta.set(LuaValue.INDEX, new TwoArgFunction() {
+                @Override
+                public LuaValue call(LuaValue table, LuaValue key) {
+                    String className = SHORT_NAMES.get(key.tojstring());
+                    if (className == null) {
+                        return LuaValue.NIL;
+                    }
+                    LuaValue classTable = importClass(className);
+                    table.rawset(key, classTable);
+                    return classTable;
+                }
+            });
+            jpexsTable.setmetatable(classesMeta);
+            globals.set("jpexsClasses", jpexsTable);
         }
 
         @Override
@@ -85,22 +181,47 @@ public class Main {
             library.set("openSWF", new OneArgFunction() {
                 @Override
                 public LuaValue call(LuaValue arg) {
-                    String filePath = arg.checkjstring();
-
-                    try (FileInputStream fis = new FileInputStream(filePath)) {
-                        // Process the SWF file
-                        SWF swf = new SWF(fis, true);
-                        return wrapObject(swf);
-                    } catch (SwfOpenException ex) {
-                        System.out.println("ERROR: Invalid SWF file");
-                        return LuaValue.NIL;
-                    } catch (IOException ex) {
-                        System.out.println("ERROR: Error during SWF opening");
-                        return LuaValue.NIL;
-                    } catch (InterruptedException ex) {
-                        System.out.println("ERROR: Parsing interrupted");
-                        return LuaValue.NIL;
+                    String filePath = resolve(arg.checkjstring());
+                    SWF shared = sharedSwf(filePath);
+                    if (shared != null) {
+                        return wrapObject(shared);
                     }
+
+                    try {
+                        // Reuse an untouched parsed copy of this file version, or parse it
+                        return opened(SwfCache.open(filePath));
+                    } catch (IOException | InterruptedException ex) {
+                        return openFailed(ex);
+                    }
+                }
+            });
+
+            // Save a SWF, re-serializing only the tags scripts modified
+            library.set("saveSWF", new ThreeArgFunction() {
+                @Override
+                public LuaValue call(LuaValue swf, LuaValue path, LuaValue options) {
+                    SWF target = (SWF) swf.checkuserdata(SWF.class);
+                    // Async calls on it may still be writing
+                    async.settle(target);
+                    if (takeUnownedWrites(target)) {
+                        // The edit could be in any tag, so none of them can be copied verbatim
+                        SwfWriter.markAllModified(target);
+                    }
+                    return SwfWriter.save(target, resolve(path.checkjstring()), options);
+                }
+            });
+
+            // Done with a SWF; an unmodified one goes back to the cache for the next openSWF
+            library.set("closeSWF", new OneArgFunction() {
+                @Override
+                public LuaValue call(LuaValue arg) {
+                    SwfCache.Handle handle = openSwfs.remove(arg.checkuserdata(SWF.class));
+                    if (handle != null) {
+                        SwfCache.release(handle, isClean(handle));
+                        writtenSwfs.remove(handle.swf);
+                        unownedWrites.remove(handle.swf);
+                    }
+                    return LuaValue.NIL;
                 }
             });
 
@@ -113,44 +234,70 @@ public class Main {
                         Class<?> clazz = Class.forName(className);
 
                         // Find a suitable constructor
-                        Constructor<?>[] constructors = clazz.getConstructors();
-                        if (constructors.length == 0) {
+                        OverloadSet constructors = ClassBinding.of(clazz).constructors();
+                        if (constructors.size() == 0) {
                             throw new LuaError("No public constructors found for " + className);
                         }
 
-                        // Try to find a constructor that matches the arguments
-                        for (Constructor<?> constructor : constructors) {
-                            if (constructor.getParameterCount() == args.narg() - 1) {
-                                Object[] javaArgs = new Object[args.narg() - 1];
-                                Class<?>[] paramTypes = constructor.getParameterTypes();
-
-                                boolean match = true;
-                                for (int i = 0; i < javaArgs.length; i++) {
-                                    LuaValue arg = args.arg(i + 2);
-                                    Object javaArg = convertLuaToJava(arg, paramTypes[i]);
-                                    if (javaArg == null) {
-                                        match = false;
-                                        break;
-                                    }
-                                    javaArgs[i] = javaArg;
-                                }
-
-                                if (match) {
-                                    Object instance = constructor.newInstance(javaArgs);
-                                    return wrapObject(instance);
-                                }
-                            }
+                        // Pick the constructor that best matches the arguments
+                        Invoker constructor = constructors.resolve(args, 2);
+                        if (constructor == null) {
+                            throw new LuaError("No matching constructor found for " + className + OverloadSet.describe(args, 2));
                         }
-
-                        throw new LuaError("No matching constructor found for " + className);
+                        return wrapObject(constructor.invoke(null, args, 2));
                     } catch (ClassNotFoundException e) {
                         throw new LuaError("Class not found: " + e.getMessage());
-                    } catch (Exception e) {
-                        throw new LuaError("Error creating instance: " + e.getMessage());
+                    } catch (Throwable e) {
+                        throw bridgeError("Error creating instance: ", e);
+                    }
+                }
+            });
+
+            // Start SWF parses, bridged calls and Lua tasks without waiting, and await them together
+            async = AsyncTasks.install(this, library);
+
+            // Add byte buffer constructors
+            library.set("buffer", LuaBuffer.library(this));
+
+            // Decompile every AS3 class in parallel, with an on-disk cache
+            library.set("decompileAll", new TwoArgFunction() {
+                @Override
+                public LuaValue call(LuaValue swf, LuaValue options) {
+                    return ScriptExporter.decompileAll(jpexsAutoLib.this, (SWF) swf.checkuserdata(SWF.class), options);
+                }
+            });
+
+            // Bulk AVM2 bytecode find/replace
+            library.set("abc", AbcPatcher.library(this));
+
+            // Report how often wrapObject could reuse an existing wrapper
+            library.set("wrapperStats", new ZeroArgFunction() {
+                @Override
+                public LuaValue call() {
+                    LuaTable stats = new LuaTable();
+                    stats.set("hits", LuaValue.valueOf((double) wrappers.hits()));
+                    stats.set("misses", LuaValue.valueOf((double) wrappers.misses()));
+                    stats.set("size", LuaValue.valueOf(wrappers.size()));
+                    return stats;
+                }
+            });
+
+            // jpexs.import("com.jpexs.decompiler.flash.abc.avm2.AVM2Code") returns the class table;
+            // jpexs.import("com.jpexs.decompiler.flash.*") returns the package namespace
+            library.set("import", new OneArgFunction() {
+                @Override
+                public LuaValue call(LuaValue name) {
+                    String className = name.checkjstring();
+                    if (className.endsWith(".*")) {
+                        return namespace(className.substring(0, className.length() - 1));
                     }
+                    return importClass(className);
                 }
             });
 
+            // jpexs.packages.com.jpexs.decompiler.flash.SWF, resolved one segment at a time
+            library.set("packages", namespace(""));
+
             // Add instanceOf function
             library.set("instanceOf", new TwoArgFunction() {
                 @Override
@@ -169,64 +316,200 @@ public class Main {
                 }
             });
 
+            // Let pairs and ipairs walk proxied Java collections
+            env.set("pairs", LuaProxies.metaAware(env.get("pairs"), LuaProxies.PAIRS));
+            env.set("ipairs", LuaProxies.metaAware(env.get("ipairs"), LuaProxies.IPAIRS));
+
             // Register the library
             env.set("jpexs", library);
             return library;
         }
 
-        // Wrap a Java class for Lua
-        private LuaValue wrapClass(Class<?> clazz) {
+        // Class table for a fully qualified name; raises a Lua error if there is no such class
+        LuaValue importClass(String className) {
+            Class<?> clazz = findClass(className);
+            if (clazz == null) {
+                throw new LuaError("Class not found: " + className);
+            }
+            return classTable(clazz);
+        }
+
+        private LuaTable classTable(Class<?> clazz) {
+            LuaTable classTable = classTables.get(clazz);
+            if (classTable == null) {
+                classTable = wrapClass(clazz);
+                classTables.put(clazz, classTable);
+            }
+            return classTable;
+        }
+
+        // Loaded without running static initializers; those run when a member is first used
+        private static Class<?> findClass(String className) {
+            try {
+                return Class.forName(className, false, Main.class.getClassLoader());
+            } catch (ClassNotFoundException | LinkageError e) {
+                return null;
+            }
+        }
+
+        // Namespace table for a package prefix such as "com.jpexs."; each key becomes a class
+        // table if a class by that name exists, and a nested namespace otherwise
+        private LuaTable namespace(String prefix) {
+            LuaTable namespace = new LuaTable();
+            LuaTable mt = new LuaTable();
+            mt.set(LuaValue.INDEX, new TwoArgFunction() {
+                @Override
+                public LuaValue call(LuaValue table, LuaValue key) {
+                    String name = prefix + key.checkjstring();
+                    Class<?> clazz = findClass(name);
+                    LuaValue value = clazz != null ? classTable(clazz) : namespace(name + ".");
+                    table.rawset(key, value);
+                    return value;
+                }
+            });
+            mt.set(LuaValue.TOSTRING, new OneArgFunction() {
+                @Override
+                public LuaValue call(LuaValue self) {
+                    return LuaValue.valueOf("package " + (prefix.isEmpty() ? "<root>" : prefix.substring(0, prefix.length() - 1)));
+                }
+            });
+            namespace.setmetatable(mt);
+            return namespace;
+        }
+
+        // Static members of a class, plus new(...) for its constructors. Methods are wrapped
+        // when first read and then cached in the table; static fields are read live.
+        private LuaTable wrapClass(Class<?> clazz) {
+            ClassBinding binding = ClassBinding.of(clazz);
             LuaTable classTable = new LuaTable();
+            LuaTable mt = new LuaTable();
 
-            // Add static fields
-            for (Field field : clazz.getFields()) {
-                if (Modifier.isStatic(field.getModifiers())) {
-                    try {
-                        classTable.set(field.getName(), wrapObject(field.get(null)));
-                    } catch (Exception e) {
-                        // Ignore field access errors
+            mt.set(LuaValue.INDEX, new TwoArgFunction() {
+                @Override
+                public LuaValue call(LuaValue table, LuaValue key) {
+                    if (key.raweq(NEW)) {
+                        LuaValue constructor = createConstructor(binding);
+                        table.rawset(key, constructor);
+                        return constructor;
                     }
-                }
-            }
 
-            // Add static methods
-            for (Method method : clazz.getMethods()) {
-                if (Modifier.isStatic(method.getModifiers())) {
-                    final Method staticMethod = method;
-                    classTable.set(method.getName(), new VarArgFunction() {
-                        @Override
-                        public Varargs invoke(Varargs args) {
-                            try {
-                                Object[] javaArgs = new Object[args.narg()];
-                                Class<?>[] paramTypes = staticMethod.getParameterTypes();
+                    ClassBinding.Member member = binding.lookup(key);
+                    if (member == null) {
+                        return LuaValue.NIL;
+                    }
 
-                                if (javaArgs.length != paramTypes.length) {
-                                    throw new LuaError("Wrong number of arguments");
-                                }
+                    OverloadSet statics = member.staticOverloads();
+                    if (statics != null) {
+                        LuaValue function = createMethodWrapper(statics);
+                        table.rawset(key, function);
+                        return function;
+                    }
 
-                                for (int i = 0; i < javaArgs.length; i++) {
-                                    javaArgs[i] = convertLuaToJava(args.arg(i+1), paramTypes[i]);
+                    if (member.field != null && Modifier.isStatic(member.field.getModifiers())) {
+                        MethodHandle getter = member.fieldGetter();
+                        if (getter != null) {
+                            long start = BridgeProfiler.ENABLED ? System.nanoTime() : 0;
+                            Object value;
+                            try {
+                                value = (Object) getter.invokeExact((Object) null);
+                            } catch (Throwable e) {
+                                if (BridgeProfiler.ENABLED) {
+                                    BridgeProfiler.record(BridgeProfiler.GET, clazz, member.name, start, true);
                                 }
-
-                                Object result = staticMethod.invoke(null, javaArgs);
-                                return wrapObject(result);
-                            } catch (Exception e) {
-                                throw new LuaError("Error calling static method: " + e.getMessage());
+                                throw bridgeError("Error reading field: ", e);
                             }
+                            if (BridgeProfiler.ENABLED) {
+                                BridgeProfiler.record(BridgeProfiler.GET, clazz, member.name, start, false);
+                            }
+                            return wrapObject(value);
                         }
-                    });
+                    }
+                    return LuaValue.NIL;
                 }
-            }
+            });
+
+            mt.set(LuaValue.NEWINDEX, new ThreeArgFunction() {
+                @Override
+                public LuaValue call(LuaValue table, LuaValue key, LuaValue value) {
+                    ClassBinding.Member member = binding.lookup(key);
+                    if (member == null || member.field == null || !Modifier.isStatic(member.field.getModifiers())) {
+                        throw new LuaError("No static field found for: " + key.tojstring());
+                    }
+                    MethodHandle fieldSetter = member.fieldSetter();
+                    if (fieldSetter == null) {
+                        throw new LuaError("Error setting field: " + member.name + " is not writable");
+                    }
+                    try {
+                        fieldSetter.invokeExact((Object) null, value);
+                        return LuaValue.NIL;
+                    } catch (Throwable e) {
+                        throw bridgeError("Error setting field: ", e);
+                    }
+                }
+            });
+
+            mt.set(LuaValue.TOSTRING, new OneArgFunction() {
+                @Override
+                public LuaValue call(LuaValue self) {
+                    return LuaValue.valueOf("class " + clazz.getName());
+                }
+            });
 
+            classTable.setmetatable(mt);
             return classTable;
         }
 
+        // ClassName.new(...) picks a public constructor the same way newInstance does
+        private LuaValue createConstructor(ClassBinding binding) {
+            OverloadSet constructors = binding.constructors();
+            return new VarArgFunction() {
+                @Override
+                public Varargs invoke(Varargs args) {
+                    if (constructors.size() == 0) {
+                        throw new LuaError("No public constructors found for " + binding.type.getName());
+                    }
+                    Invoker constructor = constructors.resolve(args, 1);
+                    if (constructor == null) {
+                        if (BridgeProfiler.ENABLED) {
+                            BridgeProfiler.failedOverload(BridgeProfiler.CALL, binding.type, "new");
+                        }
+                        throw new LuaError("No matching constructor found for " + binding.type.getName() + OverloadSet.describe(args, 1));
+                    }
+                    long start = BridgeProfiler.ENABLED ? System.nanoTime() : 0;
+                    Object instance;
+                    try {
+                        instance = constructor.invoke(null, args, 1);
+                    } catch (Throwable e) {
+                        if (BridgeProfiler.ENABLED) {
+                            BridgeProfiler.record(BridgeProfiler.CALL, binding.type, "new", start, true);
+                        }
+                        throw bridgeError("Error creating instance: ", e);
+                    }
+                    if (BridgeProfiler.ENABLED) {
+                        BridgeProfiler.record(BridgeProfiler.CALL, binding.type, "new", start, false);
+                    }
+                    return wrapObject(instance);
+                }
+            };
+        }
+
         // Wrap a Java object for Lua
-        private LuaValue wrapObject(Object obj) {
+        LuaValue wrapObject(Object obj) {
+            return wrapObject(obj, null);
+        }
+
+        // Wrap an object reached from owner's data (see UserdataWithMeta.owner), so writes
+        // through it are recorded against that tag or SWF
+        LuaValue wrapObject(Object obj, Object owner) {
             if (obj == null) {
                 return LuaValue.NIL;
             }
 
+            // Invokers already convert primitive results
+            if (obj instanceof LuaValue) {
+                return (LuaValue) obj;
+            }
+
             // Handle primitive types and strings
             if (obj instanceof Boolean) {
                 return LuaValue.valueOf((Boolean) obj);
@@ -242,96 +525,104 @@ public class Main {
                 return LuaValue.valueOf(String.valueOf(obj));
             }
 
-            // Handle collections
-            if (obj instanceof Collection) {
-                LuaTable table = new LuaTable();
-                int index = 1;
-                for (Object item : (Collection<?>) obj) {
-                    table.set(index++, wrapObject(item));
-                }
-                return table;
-            } else if (obj instanceof Map) {
-                LuaTable table = new LuaTable();
-                for (Map.Entry<?, ?> entry : ((Map<?, ?>) obj).entrySet()) {
-                    table.set(wrapObject(entry.getKey()), wrapObject(entry.getValue()));
-                }
-                return table;
-            } else if (obj.getClass().isArray()) {
-                int length = Array.getLength(obj);
-                LuaTable table = new LuaTable();
-                for (int i = 0; i < length; i++) {
-                    table.set(i + 1, wrapObject(Array.get(obj, i)));
+            // Reuse the wrapper while Lua still holds one, so == and table keys see one value
+            if (obj instanceof Tag || obj instanceof SWF) {
+                owner = obj;
+            } else if (!(owner instanceof Tag) && obj instanceof ABC && ((ABC) obj).parentTag instanceof Tag) {
+                // Reached without going through its tag, e.g. ScriptPack.abc
+                owner = ((ABC) obj).parentTag;
+            }
+            UserdataWithMeta cached = wrappers.get(obj);
+            if (cached != null) {
+                // Keep the most precise owner seen: a tag over its SWF over nothing
+                if (cached.owner == null || (cached.owner instanceof SWF && owner instanceof Tag)) {
+                    cached.owner = owner;
                 }
-                return table;
+                return cached;
+            }
+            long start = BridgeProfiler.ENABLED ? System.nanoTime() : 0;
+
+            // Binary data becomes a live buffer view instead of one number per byte
+            Object instance = obj;
+            if (obj instanceof byte[]) {
+                instance = ByteBuffer.wrap((byte[]) obj);
+            } else if (obj instanceof ByteArrayRange) {
+                instance = LuaBuffer.wrap((ByteArrayRange) obj);
+            }
+
+            // Create a userdata sharing its class metatable; collections, maps and arrays
+            // stay live Java objects and are read element by element through it
+            UserdataWithMeta userdata = new UserdataWithMeta(obj, instance, metatableFor(instance.getClass()));
+            userdata.owner = owner;
+            wrappers.put(userdata);
+            if (BridgeProfiler.ENABLED) {
+                BridgeProfiler.record(BridgeProfiler.WRAP, obj.getClass(), "", start, false);
             }
+            return userdata;
+        }
 
-            // Create a userdata for the object
-            UserdataWithMeta userdata = new UserdataWithMeta(obj);
+        // Get the shared metatable for a class, building it on first use
+        private LuaTable metatableFor(Class<?> clazz) {
+            LuaTable mt = metatables.get(clazz);
+            if (mt == null) {
+                mt = createMetatable(ClassBinding.of(clazz));
+                if (ByteBuffer.class.isAssignableFrom(clazz)) {
+                    LuaBuffer.install(this, mt);
+                } else if (LuaProxies.isProxied(clazz)) {
+                    LuaProxies.install(this, clazz, mt);
+                } else if (Timelined.class.isAssignableFrom(clazz)) {
+                    TagIterators.install(this, mt);
+                }
+                metatables.put(clazz, mt);
+            }
+            return mt;
+        }
 
-            // Create a metatable for the object
+        // Build the metatable used by every instance of a bound class
+        private LuaTable createMetatable(ClassBinding binding) {
             LuaTable mt = new LuaTable();
+            // One function per method, shared by every instance
+            Map<ClassBinding.Member, LuaValue> functions = new HashMap<>();
+            mt.set(LuaValue.EQ, equalsFunction);
+            mt.set(LuaValue.TOSTRING, toStringFunction);
             mt.set("__index", new TwoArgFunction() {
                 @Override
                 public LuaValue call(LuaValue table, LuaValue key) {
-                    Object javaObj = userdata.userdata();
-                    String methodName = key.tojstring();
-
-                    // Handle toString specially
-                    if (methodName.equals("toString")) {
-                        return new ZeroArgFunction() {
-                            @Override
-                            public LuaValue call() {
-                                return LuaValue.valueOf(javaObj.toString());
-                            }
-                        };
-                    }
+                    Object javaObj = table.touserdata();
+                    ClassBinding.Member member = binding.lookup(key);
 
-                    // Handle getClass specially
-                    if (methodName.equals("getClass")) {
-                        return new ZeroArgFunction() {
-                            @Override
-                            public LuaValue call() {
-                                return LuaValue.valueOf(javaObj.getClass().getName());
-                            }
-                        };
+                    if (member == null) {
+                        return LuaValue.NIL;
                     }
 
-                    // Try to find a matching method
-                    Method[] methods = javaObj.getClass().getMethods();
-                    List<Method> matchingMethods = new ArrayList<>();
-
-                    // First, look for exact method name matches
-                    for (Method method : methods) {
-                        if (method.getName().equals(methodName)) {
-                            matchingMethods.add(method);
+                    if (!member.methods.isEmpty()) {
+                        LuaValue function = functions.get(member);
+                        if (function == null) {
+                            function = methodFunction(binding.type, member);
+                            functions.put(member, function);
                         }
+                        lookedUp(table, member);
+                        return function;
                     }
 
-                    // If no exact matches, try getter pattern
-                    if (matchingMethods.isEmpty() && methodName.startsWith("get")) {
-                        String propertyName = methodName.substring(3);
-                        for (Method method : methods) {
-                            if (method.getName().equals("get" + propertyName) ||
-                                    method.getName().equals("is" + propertyName)) {
-                                matchingMethods.add(method);
+                    // Fall back to a public field with the given name
+                    MethodHandle getter = member.fieldGetter();
+                    if (getter != null) {
+                        long start = BridgeProfiler.ENABLED ? System.nanoTime() : 0;
+                        Object value;
+                        try {
+                            value = (Object) getter.invokeExact(javaObj);
+                        } catch (Throwable e) {
+                            // Ignore field access errors
+                            if (BridgeProfiler.ENABLED) {
+                                BridgeProfiler.record(BridgeProfiler.GET, javaObj.getClass(), member.name, start, true);
                             }
+                            return LuaValue.NIL;
                         }
-                    }
-
-                    if (!matchingMethods.isEmpty()) {
-                        return createMethodWrapper(javaObj, matchingMethods);
-                    }
-
-                    // Try to find a field with the given name
-                    try {
-                        Field field = findField(javaObj.getClass(), methodName);
-                        if (field != null) {
-                            field.setAccessible(true);
-                            Object value = field.get(javaObj);
-                            return wrapObject(value);
+                        if (BridgeProfiler.ENABLED) {
+                            BridgeProfiler.record(BridgeProfiler.GET, javaObj.getClass(), member.name, start, false);
                         }
-                    } catch (Exception e) {
-                        // Ignore field access errors
+                        return wrapObject(value, ownerOf(table));
                     }
 
                     return LuaValue.NIL;
@@ -342,103 +633,362 @@ public class Main {
             mt.set("__newindex", new ThreeArgFunction() {
                 @Override
                 public LuaValue call(LuaValue table, LuaValue key, LuaValue value) {
-                    Object javaObj = userdata.userdata();
-                    String fieldName = key.tojstring();
-
-                    // Try to find a setter method
-                    String setterName = "set" + Character.toUpperCase(fieldName.charAt(0)) + fieldName.substring(1);
-                    Method[] methods = javaObj.getClass().getMethods();
-                    for (Method method : methods) {
-                        if (method.getName().equals(setterName) && method.getParameterCount() == 1) {
-                            try {
-                                Object javaValue = convertLuaToJava(value, method.getParameterTypes()[0]);
-                                method.invoke(javaObj, javaValue);
-                                return LuaValue.NIL;
-                            } catch (Exception e) {
-                                throw new LuaError("Error calling setter: " + e.getMessage());
+                    Object javaObj = table.touserdata();
+                    ClassBinding.Member member = binding.lookup(key);
+                    noteWrite(table);
+
+                    // Try the setter method first
+                    OverloadSet setters = member != null ? member.setters() : null;
+                    if (setters != null) {
+                        Invoker setter = setters.resolve(value, 1);
+                        if (setter == null) {
+                            if (BridgeProfiler.ENABLED) {
+                                BridgeProfiler.failedOverload(BridgeProfiler.SET, javaObj.getClass(), member.name);
                             }
+                            throw new LuaError("Error calling setter: no overload of " + member.name + " accepts " + OverloadSet.describe(value, 1));
+                        }
+                        long start = BridgeProfiler.ENABLED ? System.nanoTime() : 0;
+                        try {
+                            setter.invoke(javaObj, value, 1);
+                            if (BridgeProfiler.ENABLED) {
+                                BridgeProfiler.record(BridgeProfiler.SET, javaObj.getClass(), member.name, start, false);
+                            }
+                            return LuaValue.NIL;
+                        } catch (Throwable e) {
+                            if (BridgeProfiler.ENABLED) {
+                                BridgeProfiler.record(BridgeProfiler.SET, javaObj.getClass(), member.name, start, true);
+                            }
+                            throw bridgeError("Error calling setter: ", e);
                         }
                     }
 
                     // Try to set a field directly
-                    try {
-                        Field field = findField(javaObj.getClass(), fieldName);
-                        if (field != null) {
-                            field.setAccessible(true);
-                            Object javaValue = convertLuaToJava(value, field.getType());
-                            field.set(javaObj, javaValue);
+                    if (member != null && member.field != null) {
+                        MethodHandle fieldSetter = member.fieldSetter();
+                        if (fieldSetter == null) {
+                            throw new LuaError("Error setting field: " + member.name + " is not writable");
+                        }
+                        long start = BridgeProfiler.ENABLED ? System.nanoTime() : 0;
+                        try {
+                            fieldSetter.invokeExact(javaObj, value);
+                            if (BridgeProfiler.ENABLED) {
+                                BridgeProfiler.record(BridgeProfiler.SET, javaObj.getClass(), member.name, start, false);
+                            }
                             return LuaValue.NIL;
+                        } catch (Throwable e) {
+                            if (BridgeProfiler.ENABLED) {
+                                BridgeProfiler.record(BridgeProfiler.SET, javaObj.getClass(), member.name, start, true);
+                            }
+                            throw bridgeError("Error setting field: ", e);
                         }
-                    } catch (Exception e) {
-                        throw new LuaError("Error setting field: " + e.getMessage());
                     }
 
-                    throw new LuaError("No setter or field found for: " + fieldName);
+                    throw new LuaError("No setter or field found for: " + key.tojstring());
                 }
             });
-
-            userdata.setmetatable(mt);
-            return userdata;
+            return mt;
         }
 
-        // Find a field in a class or its superclasses
-        private Field findField(Class<?> clazz, String fieldName) {
-            try {
-                return clazz.getField(fieldName);
-            } catch (NoSuchFieldException e) {
-                // Try to find a field with the given name in any superclass
-                Class<?> superClass = clazz.getSuperclass();
-                if (superClass != null) {
-                    return findField(superClass, fieldName);
+        // Record a write made through the bridge to data of owner. A tag is marked modified so
+        // saving re-serializes it instead of copying its original bytes; a write known only to
+        // be somewhere in a SWF makes the next save of that SWF re-serialize every tag. Objects
+        // unrelated to any SWF (owner null) aren't tracked
+        void noteWrite(Object owner) {
+            if (owner instanceof Tag) {
+                Tag tag = (Tag) owner;
+                tag.setModified(true);
+                if (tag.getSwf() != null) {
+                    writtenSwfs.add(tag.getSwf());
                 }
+            } else if (owner instanceof SWF) {
+                writtenSwfs.add((SWF) owner);
+                unownedWrites.add((SWF) owner);
             }
-            return null;
         }
 
-        // Create a function that wraps a set of overloaded methods
-        private LuaValue createMethodWrapper(Object javaObj, List<Method> methods) {
-            return new VarArgFunction() {
-                @Override
-                public Varargs invoke(Varargs args) {
-                    // Try each method until we find one that matches the arguments
-                    for (Method method : methods) {
-                        if (method.getParameterCount() == args.narg()) {
-                            try {
-                                Object[] javaArgs = new Object[args.narg()];
-                                Class<?>[] paramTypes = method.getParameterTypes();
-
-                                boolean match = true;
-                                for (int i = 0; i < javaArgs.length; i++) {
-                                    LuaValue arg = args.arg(i + 1);
-                                    Object javaArg = convertLuaToJava(arg, paramTypes[i]);
-                                    if (javaArg == null) {
-                                        match = false;
-                                        break;
-                                    }
-                                    javaArgs[i] = javaArg;
-                                }
+        void noteWrite(LuaValue target) {
+            noteWrite(ownerOf(target));
+        }
 
-                                if (match) {
-                                    Object result = method.invoke(javaObj, javaArgs);
-                                    return LuaValue.varargsOf(new LuaValue[] { wrapObject(result) });
-                                }
-                            } catch (Exception e) {
-                                // Try the next method
-                            }
-                        }
+        // True if swf was written through objects whose tag is unknown since the last call, so its
+        // modified flags can't be trusted; clears that state, for callers about to save it
+        boolean takeUnownedWrites(SWF swf) {
+            return unownedWrites.remove(swf);
+        }
+
+        // Tag or SWF a wrapped object was reached from, or null
+        static Object ownerOf(LuaValue value) {
+            return value instanceof UserdataWithMeta ? ((UserdataWithMeta) value).owner : null;
+        }
+
+        // Take ownership of a SWF checked out of SwfCache and hand it to Lua
+        LuaValue opened(SwfCache.Handle handle) {
+            openSwfs.put(handle.swf, handle);
+            return wrapObject(handle.swf);
+        }
+
+        // openSWF reports failures on the script's stdout, which batch and server runs redirect
+        // per script, and returns nil
+        LuaValue openFailed(Throwable ex) {
+            if (ex instanceof SwfOpenException) {
+                globals.STDOUT.println("ERROR: Invalid SWF file");
+            } else if (ex instanceof InterruptedException) {
+                globals.STDOUT.println("ERROR: Parsing interrupted");
+            } else {
+                globals.STDOUT.println("ERROR: Error during SWF opening");
+            }
+            return LuaValue.NIL;
+        }
+
+        // Unwind unfinished async tasks and return every SWF this library still has open to the cache;
+        // call once the script is done
+        public void release() {
+            if (async != null) {
+                async.release();
+            }
+            for (SwfCache.Handle handle : openSwfs.values()) {
+                SwfCache.release(handle, isClean(handle));
+            }
+            openSwfs.clear();
+            writtenSwfs.clear();
+            lookups.clear();
+            lookupThread = null;
+            lookupStack = null;
+        }
+
+        Globals globals() {
+            return globals;
+        }
+
+        // Make openSWF(path) return swf; the caller keeps ownership and saves it
+        void share(String path, SWF swf) {
+            sharedSwfs.put(sharedKey(path), swf);
+        }
+
+        // Resolve relative paths against dir instead of the JVM's working directory, for a
+        // server running a client's script
+        void directory(Path dir) {
+            directory = dir;
+        }
+
+        // path as the library's file functions should open it
+        String resolve(String path) {
+            return directory == null ? path : directory.resolve(path).toString();
+        }
+
+        // The SWF shared for path, or null
+        SWF sharedSwf(String path) {
+            return sharedSwfs.get(sharedKey(path));
+        }
+
+        private static String sharedKey(String path) {
+            return Paths.get(path).toAbsolutePath().normalize().toString();
+        }
+
+        private boolean isClean(SwfCache.Handle handle) {
+            return !writtenSwfs.contains(handle.swf) && !handle.swf.isModified();
+        }
+
+        // This coroutine's pending lookups
+        private ArrayDeque<Object> lookups() {
+            LuaThread thread = globals.running;
+            if (thread != lookupThread) {
+                lookupStack = lookups.computeIfAbsent(thread, t -> new ArrayDeque<>());
+                lookupThread = thread;
+            }
+            return lookupStack;
+        }
+
+        // Record that __index handed out member's function for receiver
+        private void lookedUp(LuaValue receiver, ClassBinding.Member member) {
+            ArrayDeque<Object> pending = lookups();
+            if (pending.size() >= 2 * MAX_LOOKUPS) {
+                pending.pollFirst();
+                pending.pollFirst();
+            }
+            pending.addLast(receiver);
+            pending.addLast(member);
+        }
+
+        // Receiver for a call of member's function: the one recorded by its lookup, which calls
+        // nested in the arguments have already taken back, or else the first argument if it is
+        // an instance of type, as for f(obj, ...) on a function kept from an earlier lookup
+        private LuaValue receiver(ClassBinding.Member member, Class<?> type, Varargs args) {
+            ArrayDeque<Object> pending = lookups();
+            if (pending.peekLast() == member) {
+                pending.pollLast();
+                return (LuaValue) pending.pollLast();
+            }
+            LuaValue arg = args.arg1();
+            if (arg.isuserdata() && type.isInstance(arg.touserdata())) {
+                return arg;
+            }
+            throw new LuaError(member.name + " has no object to call it on: use obj." + member.name + "(...) or obj:"
+                    + member.name + "(...) where it is looked up, or pass the object first");
+        }
+
+        // Shared function for an instance method of type
+        private LuaValue methodFunction(Class<?> type, ClassBinding.Member member) {
+            // toString and getClass give Lua strings rather than a wrapped String and Class
+            if (member.name.equals("toString") || member.name.equals("getClass")) {
+                boolean toString = member.name.equals("toString");
+                return new VarArgFunction() {
+                    @Override
+                    public Varargs invoke(Varargs args) {
+                        Object javaObj = receiver(member, type, args).touserdata();
+                        return LuaValue.valueOf(toString ? javaObj.toString() : javaObj.getClass().getName());
+                    }
+                };
+            }
+            return new MethodWrapper(member, type, member.overloads());
+        }
+
+        // Create a function that wraps a set of overloaded static methods
+        private LuaValue createMethodWrapper(OverloadSet methods) {
+            return new MethodWrapper(null, null, methods);
+        }
+
+        // A bridged method, shared by all instances of a class. Works as obj.method(...) and
+        // obj:method(...), since __index can't tell which one it is serving; the receiver comes
+        // from the lookup record, see receiver. The steps are separate so jpexs.async can resolve
+        // on the Lua thread, call on a virtual thread and wrap back on the Lua thread
+        final class MethodWrapper extends VarArgFunction {
+            // Instance method and the class it is bound for; both null for statics
+            private final ClassBinding.Member member;
+            private final Class<?> type;
+            private final OverloadSet methods;
+
+            MethodWrapper(ClassBinding.Member member, Class<?> type, OverloadSet methods) {
+                this.member = member;
+                this.type = type;
+                this.methods = methods;
+            }
+
+            @Override
+            public Varargs invoke(Varargs args) {
+                LuaValue self = self(args);
+                int first = first(args, self);
+                Object owner = owner(self, args, first);
+                Invoker method = resolve(self, args, first, owner);
+                return wrap(method, call(method, self, args, first), owner);
+            }
+
+            // The receiver's wrapper, null for statics; Lua thread only, and once per call
+            LuaValue self(Varargs args) {
+                return member == null ? null : receiver(member, type, args);
+            }
+
+            // Position of the first Java argument: 2 when called as obj:method(...), which passes
+            // the receiver first, and 1 otherwise
+            int first(Varargs args, LuaValue self) {
+                if (self == null || args.narg() == 0 || !args.arg1().raweq(self) || !methods.hasArity(args.narg() - 1)) {
+                    return 1;
+                }
+                // obj.method(obj, ...) reads the same; it wins if some overload accepts it
+                return methods.hasArity(args.narg()) && methods.resolve(args, 1) != null ? 1 : 2;
+            }
+
+            // Tag or SWF whose data the call can reach: the receiver's, or for statics and non-JDK
+            // receivers unrelated to any SWF, that of the first argument with one (JDK methods
+            // such as List.add don't change their arguments). Writes are recorded against it and
+            // the result is wrapped with it
+            Object owner(LuaValue self, Varargs args, int first) {
+                Object owner = self != null ? ownerOf(self) : null;
+                if (owner != null || (self != null && self.touserdata().getClass().getName().startsWith("java."))) {
+                    return owner;
+                }
+                for (int i = first; owner == null && i <= args.narg(); i++) {
+                    owner = ownerOf(args.arg(i));
+                }
+                return owner;
+            }
+
+            // Pick the overload and note the write; Lua thread only
+            Invoker resolve(LuaValue self, Varargs args, int first, Object owner) {
+                Invoker method = methods.resolve(args, first);
+                if (method == null) {
+                    if (BridgeProfiler.ENABLED && methods.size() > 0) {
+                        BridgeProfiler.failedOverload(BridgeProfiler.CALL, receiverClass(self, methods), methods.name());
                     }
+                    throw new LuaError("No matching method found among " + methods.size() + " overloads for " + OverloadSet.describe(args, first));
+                }
 
-                    throw new LuaError("No matching method found among " + methods.size() + " overloads");
+                if (method.mutating) {
+                    noteWrite(owner);
                 }
-            };
+                return method;
+            }
+
+            // Run the Java method; touches no library state, so any thread may call it
+            Object call(Invoker method, LuaValue self, Varargs args, int first) {
+                long start = BridgeProfiler.ENABLED ? System.nanoTime() : 0;
+                Object result;
+                try {
+                    result = method.invoke(self != null ? self.touserdata() : null, args, first);
+                } catch (Throwable e) {
+                    if (BridgeProfiler.ENABLED) {
+                        BridgeProfiler.record(BridgeProfiler.CALL, receiverClass(self, methods), methods.name(), start, true);
+                    }
+                    throw bridgeError("Error calling " + method.executable.getName() + ": ", e);
+                }
+                if (BridgeProfiler.ENABLED) {
+                    BridgeProfiler.record(BridgeProfiler.CALL, receiverClass(self, methods), methods.name(), start, false);
+                }
+                return result;
+            }
+
+            // Hand the result to Lua; Lua thread only
+            LuaValue wrap(Invoker method, Object result, Object owner) {
+                try {
+                    return wrapObject(result, owner);
+                } catch (Throwable e) {
+                    throw bridgeError("Error calling " + method.executable.getName() + ": ", e);
+                }
+            }
+        }
+
+        // Class a call is reported under: the receiver's, or the declaring class for statics
+        private static Class<?> receiverClass(LuaValue self, OverloadSet methods) {
+            return self != null ? self.touserdata().getClass() : methods.declaringClass();
+        }
+
+        // Turn a failed Java call into a Lua error carrying the real cause
+        static LuaError bridgeError(String prefix, Throwable e) {
+            if (e instanceof LuaError) {
+                return (LuaError) e;
+            }
+            if (e instanceof InvocationTargetException && e.getCause() != null) {
+                e = e.getCause();
+            }
+            return new LuaError(prefix + e.getMessage());
         }
 
         // Convert a Lua value to a Java value
-        private Object convertLuaToJava(LuaValue luaValue, Class<?> targetType) {
+        static Object convertLuaToJava(LuaValue luaValue, Class<?> targetType) {
+            if (!BridgeProfiler.ENABLED) {
+                return toJava(luaValue, targetType);
+            }
+            long start = System.nanoTime();
+            boolean failed = true;
+            try {
+                Object value = toJava(luaValue, targetType);
+                failed = false;
+                return value;
+            } finally {
+                BridgeProfiler.record(BridgeProfiler.CONVERT, targetType, "", start, failed);
+            }
+        }
+
+        private static Object toJava(LuaValue luaValue, Class<?> targetType) {
             if (luaValue.isnil() && !targetType.isPrimitive()) {
                 return null;
             }
 
+            // Java objects, including proxied collections and arrays, pass through unchanged
+            if (luaValue.isuserdata() && targetType.isInstance(luaValue.touserdata())) {
+                return luaValue.touserdata();
+            }
+
             // Handle primitive types
             if (targetType.isPrimitive()) {
                 targetType = primitiveWrappers.get(targetType);
@@ -465,6 +1015,14 @@ public class Main {
                 return (short) luaValue.toint();
             }
 
+            // Binary data converts in bulk from buffers and Lua strings
+            if (LuaBuffer.isBinaryType(targetType)) {
+                Object binary = LuaBuffer.toJava(luaValue, targetType);
+                if (binary != null) {
+                    return binary;
+                }
+            }
+
             // Handle arrays and collections
             if (targetType.isArray()) {
                 if (!luaValue.istable()) {
@@ -478,7 +1036,7 @@ public class Main {
 
                 for (int i = 0; i < length; i++) {
                     LuaValue element = table.get(i + 1);
-                    Object javaElement = convertLuaToJava(element, componentType);
+                    Object javaElement = toJava(element, componentType);
                     if (javaElement == null && componentType.isPrimitive()) {
                         return null;
                     }
@@ -496,7 +1054,7 @@ public class Main {
 
                 for (int i = 1; i <= table.length(); i++) {
                     LuaValue element = table.get(i);
-                    list.add(convertLuaToJava(element, Object.class));
+                    list.add(toJava(element, Object.class));
                 }
 
                 return list;
@@ -515,18 +1073,23 @@ public class Main {
                         break;
                     }
                     LuaValue v = n.arg(2);
-                    map.put(convertLuaToJava(k, Object.class), convertLuaToJava(v, Object.class));
+                    map.put(toJava(k, Object.class), toJava(v, Object.class));
                 }
 
                 return map;
             }
 
-            // Handle userdata (Java objects)
-            if (luaValue.isuserdata()) {
-                Object obj = luaValue.touserdata();
-                if (targetType.isInstance(obj)) {
-                    return obj;
-                }
+            // Box plain Lua values for Object, Number, CharSequence and similar targets
+            Object boxed = null;
+            if (luaValue.type() == LuaValue.TNUMBER) {
+                boxed = luaValue.isinttype() ? (Object) luaValue.toint() : (Object) luaValue.todouble();
+            } else if (luaValue.type() == LuaValue.TSTRING) {
+                boxed = luaValue.tojstring();
+            } else if (luaValue.isboolean()) {
+                boxed = luaValue.toboolean();
+            }
+            if (boxed != null && targetType.isInstance(boxed)) {
+                return boxed;
             }
 
             // Can't convert
@@ -534,10 +1097,38 @@ public class Main {
         }
     }
 
-    // Helper class to wrap Java objects for Lua
+    // Helper class to wrap Java objects for Lua. Wrappers compare and hash by the identity of
+    // the wrapped object, so they work as table keys even when the object's hashCode changes;
+    // == between different objects falls through to the shared __eq (Java equals).
     static class UserdataWithMeta extends LuaUserdata {
-        public UserdataWithMeta(Object obj) {
-            super(obj);
+        // The object wrapObject was called with, which differs from the userdata for byte arrays
+        final Object identity;
+        // What this object's data belongs to, for dirty tracking: the Tag it was reached from,
+        // else the SWF when it was reached from one but not through a tag, else null
+        Object owner;
+
+        public UserdataWithMeta(Object obj, LuaValue metatable) {
+            this(obj, obj, metatable);
+        }
+
+        public UserdataWithMeta(Object identity, Object obj, LuaValue metatable) {
+            super(obj, metatable);
+            this.identity = identity;
+        }
+
+        @Override
+        public int hashCode() {
+            return System.identityHashCode(m_instance);
+        }
+
+        @Override
+        public boolean equals(Object val) {
+            return this == val || (val instanceof LuaUserdata && ((LuaUserdata) val).m_instance == m_instance);
+        }
+
+        @Override
+        public boolean raweq(LuaUserdata val) {
+            return this == val || val.m_instance == m_instance;
         }
     }
 }
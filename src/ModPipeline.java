@@ -0,0 +1,533 @@
+import org.luaj.vm2.*;
+import java.io.*;
+import java.nio.file.*;
+import java.util.*;
+import java.util.concurrent.*;
+import com.jpexs.decompiler.flash.SWF;
+import com.jpexs.decompiler.flash.tags.Tag;
+import com.jpexs.decompiler.flash.tags.base.CharacterTag;
+import com.jpexs.decompiler.flash.timeline.Timelined;
+
+// Applies several mods to the same game: each target SWF is parsed once, every mod that
+// targets it runs in order against the shared in-memory SWF, and it is saved once.
+// The manifest is a Lua file returning a table; paths are relative to the manifest:
+//   return {
+//     output = "build",                 -- required; must not be the targets' own directory
+//     compression = "zlib", level = 6,  -- optional, see jpexs.saveSWF
+//     mods = {
+//       {name = "fonts", script = "fonts.lua", targets = {"game/a.swf"}},
+//       {name = "jokes", script = "jokes.lua", targets = {"game/a.swf", "game/b.swf"}, after = {"fonts"},
+//        inputs = {"jokes.txt"}},         -- optional; other files it reads, for the build cache
+//     },
+//   }
+// Mods run in manifest order, except that a mod always runs after the mods in its after list.
+// Each mod gets its own Globals; inside it the target path is ... and arg[1], the SWF is the
+// second vararg, and jpexs.openSWF(path) returns the shared SWF. Mods must not save it.
+// Tags changed by more than one mod are reported as conflicts. A mod that wrote to objects not
+// reached from a tag is listed separately: every tag is re-saved for it, but only the tags it
+// was seen changing count towards conflicts. Targets whose input SWF, mods and options
+// are unchanged since an earlier run are copied from BuildCache instead. A mod that reads
+// other files lists them as inputs = {"data.txt", "images"} so that changing them is seen
+// too; --no-cache skips the cache altogether.
+final class ModPipeline {
+    private ModPipeline() {
+    }
+
+    private static final class Mod {
+        final String name;
+        final String script;
+        final List<Path> targets = new ArrayList<>();
+        final List<String> after = new ArrayList<>();
+        // Files and directories the mod reads besides its scripts, for the build cache key
+        final List<Path> inputs = new ArrayList<>();
+        Prototype prototype;
+        // Script plus required modules, for the build cache key
+        String hash;
+
+        Mod(String name, String script) {
+            this.name = name;
+            this.script = script;
+        }
+    }
+
+    // One mod applied to one target
+    private static final class ModRun {
+        final Mod mod;
+        long nanos;
+        int modified;
+        int added;
+        int removed;
+        // Wrote to objects the bridge couldn't trace to a tag, so every tag is re-saved
+        boolean untracked;
+        String error;
+        String output = "";
+
+        ModRun(Mod mod) {
+            this.mod = mod;
+        }
+    }
+
+    // Outcome of one target SWF
+    private static final class Target {
+        final Path path;
+        final List<Mod> mods = new ArrayList<>();
+        final List<ModRun> runs = new ArrayList<>();
+        final List<String> conflicts = new ArrayList<>();
+        Path output;
+        boolean ok;
+        boolean cached;
+        String error;
+        long parseNanos;
+        long saveNanos;
+
+        Target(Path path) {
+            this.path = path;
+        }
+    }
+
+    // pipeline [--threads N] [--no-cache] manifest.lua
+    static int run(String[] args) {
+        int threads = Runtime.getRuntime().availableProcessors();
+        boolean useCache = BuildCache.ENABLED;
+        String manifest = null;
+
+        for (int i = 0; i < args.length; i++) {
+            if (args[i].equals("--threads") && i + 1 < args.length) {
+                try {
+                    threads = Math.max(1, Integer.parseInt(args[++i]));
+                } catch (NumberFormatException e) {
+                    System.err.println("Invalid --threads value: " + args[i]);
+                    System.err.println("Usage: pipeline [--threads N] [--no-cache] manifest.lua");
+                    return 2;
+                }
+            } else if (args[i].equals("--no-cache")) {
+                useCache = false;
+            } else {
+                manifest = args[i];
+            }
+        }
+
+        if (manifest == null) {
+            System.err.println("Usage: pipeline [--threads N] [--no-cache] manifest.lua");
+            return 2;
+        }
+
+        List<Mod> mods;
+        List<Target> targets;
+        LuaTable saveOptions = new LuaTable();
+        try {
+            LuaTable table = loadManifest(manifest);
+            Path base = Paths.get(manifest).toAbsolutePath().getParent();
+            mods = order(readMods(table, base));
+            for (Mod mod : mods) {
+                mod.prototype = BatchRunner.compile(mod.script);
+                if (useCache) {
+                    mod.hash = BuildCache.scriptHash(Paths.get(mod.script), mod.inputs);
+                }
+            }
+            if (table.get("output").isnil()) {
+                // Writing over the targets would make a second run apply every mod twice
+                throw new LuaError("The manifest needs an output directory; targets are never modified in place");
+            }
+            targets = plan(mods, base.resolve(table.get("output").checkjstring()));
+            if (!table.get("compression").isnil()) {
+                saveOptions.set("compression", table.get("compression").checkjstring());
+            }
+            if (!table.get("level").isnil()) {
+                saveOptions.set("level", table.get("level").checkint());
+            }
+        } catch (IOException | LuaError e) {
+            System.err.println("Error reading manifest: " + e.getMessage());
+            return 1;
+        }
+
+        if (targets.isEmpty()) {
+            System.err.println("Manifest has no targets");
+            return 1;
+        }
+
+        threads = Math.min(threads, targets.size());
+        long start = System.nanoTime();
+        runAll(targets, saveOptions, threads, useCache);
+        long wall = System.nanoTime() - start;
+
+        printReport(mods, targets, wall, useCache);
+        return targets.stream().allMatch(t -> t.ok) ? 0 : 1;
+    }
+
+    private static LuaTable loadManifest(String manifest) {
+        LuaValue table = Main.createGlobals().loadfile(manifest).call();
+        if (!table.istable()) {
+            throw new LuaError(manifest + " must return a table");
+        }
+        return table.checktable();
+    }
+
+    private static List<Mod> readMods(LuaTable manifest, Path base) {
+        LuaTable list = manifest.get("mods").checktable();
+        List<Mod> mods = new ArrayList<>();
+        Set<String> names = new HashSet<>();
+
+        for (int i = 1; i <= list.length(); i++) {
+            LuaTable entry = list.get(i).checktable();
+            String script = entry.get("script").checkjstring();
+            String name = entry.get("name").optjstring(Paths.get(script).getFileName().toString());
+            if (!names.add(name)) {
+                throw new LuaError("Duplicate mod name: " + name);
+            }
+
+            Mod mod = new Mod(name, base.resolve(script).toString());
+            LuaTable targets = entry.get("targets").checktable();
+            for (int t = 1; t <= targets.length(); t++) {
+                mod.targets.add(base.resolve(targets.get(t).checkjstring()).normalize());
+            }
+            LuaValue after = entry.get("after");
+            if (!after.isnil()) {
+                for (int a = 1; a <= after.length(); a++) {
+                    mod.after.add(after.get(a).checkjstring());
+                }
+            }
+            LuaValue inputs = entry.get("inputs");
+            if (!inputs.isnil()) {
+                for (int n = 1; n <= inputs.length(); n++) {
+                    mod.inputs.add(base.resolve(inputs.get(n).checkjstring()).normalize());
+                }
+            }
+            mods.add(mod);
+        }
+        return mods;
+    }
+
+    // Manifest order, moved only as far as the after lists require
+    private static List<Mod> order(List<Mod> mods) {
+        Map<String, Mod> byName = new HashMap<>();
+        for (Mod mod : mods) {
+            byName.put(mod.name, mod);
+        }
+        for (Mod mod : mods) {
+            for (String dependency : mod.after) {
+                if (!byName.containsKey(dependency)) {
+                    throw new LuaError("Mod " + mod.name + " runs after unknown mod " + dependency);
+                }
+            }
+        }
+
+        List<Mod> ordered = new ArrayList<>();
+        Set<String> placed = new HashSet<>();
+        List<Mod> pending = new ArrayList<>(mods);
+        while (!pending.isEmpty()) {
+            Mod next = null;
+            for (Mod mod : pending) {
+                if (placed.containsAll(mod.after)) {
+                    next = mod;
+                    break;
+                }
+            }
+            if (next == null) {
+                StringBuilder cycle = new StringBuilder();
+                for (Mod mod : pending) {
+                    cycle.append(cycle.length() == 0 ? "" : ", ").append(mod.name);
+                }
+                throw new LuaError("Mods have circular after dependencies: " + cycle);
+            }
+            pending.remove(next);
+            placed.add(next.name);
+            ordered.add(next);
+        }
+        return ordered;
+    }
+
+    // Group the ordered mods by target, keeping the order of first mention
+    private static List<Target> plan(List<Mod> mods, Path outputDir) {
+        Map<Path, Target> targets = new LinkedHashMap<>();
+        for (Mod mod : mods) {
+            for (Path path : mod.targets) {
+                targets.computeIfAbsent(path, Target::new).mods.add(mod);
+            }
+        }
+
+        Set<Path> outputs = new HashSet<>();
+        for (Target target : targets.values()) {
+            target.output = outputDir.resolve(target.path.getFileName()).normalize();
+            if (target.output.equals(target.path.toAbsolutePath().normalize())) {
+                throw new LuaError(target.path + " would be overwritten by its own output; use another output directory");
+            }
+            if (!outputs.add(target.output)) {
+                throw new LuaError("Two targets would be written to " + target.output);
+            }
+        }
+        return new ArrayList<>(targets.values());
+    }
+
+    private static void runAll(List<Target> targets, LuaTable saveOptions, int threads, boolean useCache) {
+        ExecutorService pool = Executors.newFixedThreadPool(threads);
+        try {
+            List<Future<?>> futures = new ArrayList<>();
+            for (Target target : targets) {
+                futures.add(pool.submit(() -> runTarget(target, saveOptions, useCache)));
+            }
+            for (int i = 0; i < futures.size(); i++) {
+                try {
+                    futures.get(i).get();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    break;
+                } catch (ExecutionException e) {
+                    targets.get(i).error = String.valueOf(e.getCause());
+                }
+            }
+        } finally {
+            pool.shutdownNow();
+        }
+    }
+
+    private static void runTarget(Target target, LuaTable saveOptions, boolean useCache) {
+        long started = System.nanoTime();
+        String key = null;
+        // Hashed once for the key, and handed on so SwfCache doesn't hash the file again
+        SwfCache.Digest digest = null;
+        // The key hashes the input, which must still be the unmodded SWF; an output that is the
+        // input under another name (a link, a case-insensitive file system) is never cached
+        if (useCache && !sameFile(target.path, target.output)) {
+            try {
+                List<String> mods = new ArrayList<>();
+                for (Mod mod : target.mods) {
+                    mods.add(mod.name + "=" + mod.hash);
+                }
+                digest = SwfCache.digest(target.path);
+                key = BuildCache.key(digest, mods, saveOptions.get("compression") + "/" + saveOptions.get("level"));
+                if (BuildCache.restore(key, target.output)) {
+                    target.ok = true;
+                    target.cached = true;
+                    target.saveNanos = System.nanoTime() - started;
+                    return;
+                }
+            } catch (IOException e) {
+                // Unreadable input; opening it below reports the error
+                key = null;
+            }
+        }
+
+        long start = System.nanoTime();
+        SwfCache.Handle handle;
+        try {
+            handle = SwfCache.open(target.path.toString(), digest);
+        } catch (Exception e) {
+            target.error = "Error opening SWF: " + e;
+            return;
+        } finally {
+            target.parseNanos = System.nanoTime() - start;
+        }
+
+        // Tag -> mods that modified or removed it, for the conflict report
+        Map<Tag, Set<String>> touchedBy = new IdentityHashMap<>();
+        for (Mod mod : target.mods) {
+            ModRun run = runMod(mod, target.path, handle.swf, touchedBy);
+            target.runs.add(run);
+            if (run.error != null) {
+                target.error = "Mod " + mod.name + " failed, nothing saved: " + run.error;
+                return;
+            }
+        }
+
+        for (Map.Entry<Tag, Set<String>> entry : touchedBy.entrySet()) {
+            if (entry.getValue().size() > 1) {
+                target.conflicts.add(describe(entry.getKey()) + " changed by " + String.join(", ", entry.getValue()));
+            }
+        }
+
+        start = System.nanoTime();
+        try {
+            // saveSWF reads the options table, so give this thread its own copy
+            LuaTable options = new LuaTable();
+            options.set("compression", saveOptions.get("compression"));
+            options.set("level", saveOptions.get("level"));
+            SwfWriter.save(handle.swf, target.output.toString(), options);
+            target.ok = true;
+            if (key != null) {
+                BuildCache.store(key, target.output, System.nanoTime() - started);
+            }
+        } catch (LuaError e) {
+            target.error = e.getMessage();
+        } finally {
+            target.saveNanos = System.nanoTime() - start;
+        }
+        // The SWF now carries the mods' edits, so it is not handed back to SwfCache
+    }
+
+    private static boolean sameFile(Path a, Path b) {
+        try {
+            return Files.exists(b) && Files.isSameFile(a, b);
+        } catch (IOException e) {
+            return false;
+        }
+    }
+
+    // Run one mod against the shared SWF. Modified flags are cleared for the duration of the run
+    // so that the tags this mod changes can be told apart, then the earlier flags are put back.
+    private static ModRun runMod(Mod mod, Path path, SWF swf, Map<Tag, Set<String>> touchedBy) {
+        ModRun run = new ModRun(mod);
+        ByteArrayOutputStream output = new ByteArrayOutputStream();
+        long start = System.nanoTime();
+
+        Map<Tag, Boolean> before = new IdentityHashMap<>();
+        for (Tag tag : allTags(swf)) {
+            before.put(tag, tag.isModified());
+            tag.setModified(false);
+        }
+
+        Main.jpexsAutoLib lib = null;
+        try {
+            lib = Main.createLibrary();
+            lib.share(path.toString(), swf);
+            Globals globals = lib.globals();
+            globals.STDOUT = new PrintStream(output, true);
+
+            LuaTable arg = new LuaTable();
+            arg.set(0, LuaValue.valueOf(mod.script));
+            arg.set(1, LuaValue.valueOf(path.toString()));
+            globals.set("arg", arg);
+
+            globals.loader.load(mod.prototype, "@" + mod.script, globals)
+                    .invoke(LuaValue.varargsOf(LuaValue.valueOf(path.toString()), lib.wrapObject(swf)));
+        } catch (LuaError e) {
+            run.error = e.getMessage();
+        } catch (Exception e) {
+            run.error = e.toString();
+        } finally {
+            if (lib != null) {
+                lib.release();
+                run.untracked = lib.takeUnownedWrites(swf);
+            }
+
+            Set<Tag> after = Collections.newSetFromMap(new IdentityHashMap<>());
+            after.addAll(allTags(swf));
+            for (Tag tag : after) {
+                boolean existed = before.containsKey(tag);
+                if (!existed) {
+                    run.added++;
+                } else if (tag.isModified()) {
+                    run.modified++;
+                    touchedBy.computeIfAbsent(tag, t -> new LinkedHashSet<>()).add(mod.name);
+                }
+                if (existed && before.get(tag)) {
+                    tag.setModified(true);
+                }
+            }
+            for (Tag tag : before.keySet()) {
+                if (!after.contains(tag)) {
+                    run.removed++;
+                    touchedBy.computeIfAbsent(tag, t -> new LinkedHashSet<>()).add(mod.name);
+                }
+            }
+            // Only after counting, so the report and conflicts reflect the tags seen changing
+            if (run.untracked) {
+                SwfWriter.markAllModified(swf);
+            }
+
+            run.nanos = System.nanoTime() - start;
+            run.output = output.toString();
+        }
+        return run;
+    }
+
+    // Every tag of a timeline, including those nested in sprites
+    private static List<Tag> allTags(Timelined timelined) {
+        List<Tag> tags = new ArrayList<>();
+        for (Tag tag : timelined.getTags()) {
+            tags.add(tag);
+            if (tag instanceof Timelined) {
+                tags.addAll(allTags((Timelined) tag));
+            }
+        }
+        return tags;
+    }
+
+    private static String describe(Tag tag) {
+        String name = tag.getClass().getSimpleName();
+        return tag instanceof CharacterTag ? name + " #" + ((CharacterTag) tag).getCharacterId() : name;
+    }
+
+    private static void printReport(List<Mod> mods, List<Target> targets, long wallNanos, boolean useCache) {
+        for (Target target : targets) {
+            for (ModRun run : target.runs) {
+                if (!run.output.isEmpty()) {
+                    System.out.print("[" + run.mod.name + " @ " + target.path.getFileName() + "]\n" + run.output);
+                }
+            }
+        }
+
+        System.out.println();
+        System.out.println(String.format("%-8s %10s %10s %6s  %s", "STATUS", "PARSE (ms)", "SAVE (ms)", "MODS", "TARGET"));
+        int failures = 0;
+        for (Target target : targets) {
+            if (!target.ok) {
+                failures++;
+            }
+            System.out.println(String.format("%-8s %10.1f %10.1f %6d  %s", target.cached ? "CACHED" : target.ok ? "OK" : "FAILED",
+                    target.parseNanos / 1e6, target.saveNanos / 1e6, target.runs.size(),
+                    target.ok ? target.path + " -> " + target.output : target.path));
+            if (!target.ok) {
+                System.out.println("         " + target.error);
+            }
+        }
+
+        System.out.println();
+        System.out.println(String.format("%-20s %7s %10s %9s %6s %8s", "MOD", "TARGETS", "TIME (ms)", "MODIFIED", "ADDED", "REMOVED"));
+        for (Mod mod : mods) {
+            int applied = 0;
+            long nanos = 0;
+            int modified = 0;
+            int added = 0;
+            int removed = 0;
+            for (Target target : targets) {
+                for (ModRun run : target.runs) {
+                    if (run.mod == mod) {
+                        applied++;
+                        nanos += run.nanos;
+                        modified += run.modified;
+                        added += run.added;
+                        removed += run.removed;
+                    }
+                }
+            }
+            System.out.println(String.format("%-20s %7d %10.1f %9d %6d %8d", mod.name, applied, nanos / 1e6, modified, added, removed));
+        }
+
+        boolean anyConflicts = false;
+        for (Target target : targets) {
+            for (String conflict : target.conflicts) {
+                if (!anyConflicts) {
+                    System.out.println();
+                    System.out.println("Conflicts (tags changed by more than one mod):");
+                    anyConflicts = true;
+                }
+                System.out.println("  " + target.path.getFileName() + ": " + conflict);
+            }
+        }
+
+        boolean anyUntracked = false;
+        for (Target target : targets) {
+            for (ModRun run : target.runs) {
+                if (run.untracked) {
+                    if (!anyUntracked) {
+                        System.out.println();
+                        System.out.println("Untracked writes (objects not reached from a tag; every tag re-saved, conflicts may be missed):");
+                        anyUntracked = true;
+                    }
+                    System.out.println("  " + target.path.getFileName() + ": " + run.mod.name);
+                }
+            }
+        }
+
+        System.out.println();
+        System.out.println(String.format("%d targets, %d failed, %d mods, wall time %.1f ms", targets.size(), failures, mods.size(), wallNanos / 1e6));
+        if (useCache) {
+            System.out.println(BuildCache.report());
+        }
+        if (ScriptCache.TIMING) {
+            System.out.println(ScriptCache.report());
+            System.out.println(SwfCache.report());
+        }
+    }
+}
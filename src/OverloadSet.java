@@ -0,0 +1,371 @@
+import org.luaj.vm2.*;
+import java.nio.ByteBuffer;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+
+// Overloads of one Java member, resolved by scoring candidates against the Lua argument
+// types. Decisions are cached per argument signature, with the most recent signature
+// checked first so monomorphic call sites skip both scoring and the cache lookup.
+final class OverloadSet {
+    private static final int INAPPLICABLE = -1;
+    // Conversions convertLuaToJava performs but that lose meaning, e.g. nil passed as an int
+    private static final int LENIENT = 20;
+
+    private static final int T_NIL = 0;
+    private static final int T_BOOLEAN = 1;
+    private static final int T_INT = 2;
+    private static final int T_DOUBLE = 3;
+    private static final int T_STRING = 4;
+    private static final int T_TABLE = 5;
+    private static final int T_USERDATA = 6;
+    private static final int T_OTHER = 7;
+    // Signature flags on T_STRING: one character long, and numeric
+    private static final int S_CHAR = 0x08;
+    private static final int S_NUMERIC = 0x10;
+    // keyCode of a table whose first element is a table; such calls are resolved uncached
+    private static final int UNCACHEABLE = -1;
+
+    private static final Set<Class<?>> NUMERIC = new HashSet<>(Arrays.asList(
+            int.class, long.class, double.class, float.class, short.class, byte.class,
+            Integer.class, Long.class, Double.class, Float.class, Short.class, Byte.class));
+
+    private final Invoker[] candidates;
+    private final Map<Signature, Invoker> choices = new ConcurrentHashMap<>();
+    private volatile Choice last;
+    // Bit n set when some overload takes n arguments, for n below 64
+    private final long arities;
+
+    // Resolved overload for one signature; invoker is null when nothing applies
+    private static final class Choice {
+        final Signature signature;
+        final Invoker invoker;
+
+        Choice(Signature signature, Invoker invoker) {
+            this.signature = signature;
+            this.invoker = invoker;
+        }
+    }
+
+    OverloadSet(Invoker[] candidates) {
+        // Stable order so ties resolve the same way on every run and JVM
+        this.candidates = candidates.clone();
+        Arrays.sort(this.candidates, Comparator.comparingInt(Invoker::arity)
+                .thenComparing(invoker -> Arrays.toString(invoker.parameterTypes)));
+        long mask = 0;
+        for (Invoker candidate : this.candidates) {
+            if (candidate.arity() < 64) {
+                mask |= 1L << candidate.arity();
+            }
+        }
+        this.arities = mask;
+    }
+
+    int size() {
+        return candidates.length;
+    }
+
+    // True if some overload takes exactly count arguments
+    boolean hasArity(int count) {
+        if (count < 64) {
+            return (arities & 1L << count) != 0;
+        }
+        for (Invoker candidate : candidates) {
+            if (candidate.arity() == count) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    Class<?> declaringClass() {
+        return candidates.length > 0 ? candidates[0].executable.getDeclaringClass() : Object.class;
+    }
+
+    // Member name for reports; constructors report as "new"
+    String name() {
+        if (candidates.length == 0) {
+            return "?";
+        }
+        return candidates[0].executable instanceof java.lang.reflect.Constructor ? "new" : candidates[0].executable.getName();
+    }
+
+    // Pick the overload for the arguments starting at position first, or null if none applies
+    Invoker resolve(Varargs args, int first) {
+        Choice choice = last;
+        if (choice != null && choice.signature.matches(args, first)) {
+            return choice.invoker;
+        }
+
+        Signature signature = Signature.of(args, first);
+        if (signature == null) {
+            return select(args, first);
+        }
+        Invoker invoker = choices.get(signature);
+        if (invoker == null) {
+            invoker = select(args, first);
+            if (invoker != null) {
+                choices.put(signature, invoker);
+            }
+        }
+        last = new Choice(signature, invoker);
+        return invoker;
+    }
+
+    // Describe the Lua argument types for error messages
+    static String describe(Varargs args, int first) {
+        StringJoiner joiner = new StringJoiner(", ", "(", ")");
+        for (int i = first; i <= args.narg(); i++) {
+            LuaValue arg = args.arg(i);
+            joiner.add(arg.isuserdata() ? arg.touserdata().getClass().getSimpleName() : arg.typename());
+        }
+        return joiner.toString();
+    }
+
+    private Invoker select(Varargs args, int first) {
+        int count = args.narg() - first + 1;
+        Invoker best = null;
+        int bestScore = Integer.MAX_VALUE;
+
+        for (Invoker candidate : candidates) {
+            if (candidate.arity() != count) {
+                continue;
+            }
+
+            int total = 0;
+            for (int i = 0; i < count && total != INAPPLICABLE; i++) {
+                int score = score(args.arg(first + i), candidate.parameterTypes[i]);
+                total = score == INAPPLICABLE ? INAPPLICABLE : total + score;
+            }
+            if (total == INAPPLICABLE) {
+                continue;
+            }
+
+            if (total < bestScore || (total == bestScore && moreSpecific(candidate, best))) {
+                best = candidate;
+                bestScore = total;
+            }
+        }
+        return best;
+    }
+
+    // True when every parameter of a is assignable to the matching parameter of b
+    private static boolean moreSpecific(Invoker a, Invoker b) {
+        for (int i = 0; i < a.parameterTypes.length; i++) {
+            if (!b.parameterTypes[i].isAssignableFrom(a.parameterTypes[i])) {
+                return false;
+            }
+        }
+        return !Arrays.equals(a.parameterTypes, b.parameterTypes);
+    }
+
+    // Cost of passing a Lua value to a parameter; mirrors what convertLuaToJava can produce
+    static int score(LuaValue value, Class<?> type) {
+        switch (typeCode(value)) {
+            case T_NIL:
+                return type.isPrimitive() ? LENIENT : 0;
+            case T_BOOLEAN:
+                if (type == boolean.class || type == Boolean.class) {
+                    return 0;
+                }
+                return boxedFallback(value, Boolean.class, type);
+            case T_INT:
+                if (type == int.class) {
+                    return 0;
+                } else if (type == long.class || type == Integer.class) {
+                    return 1;
+                } else if (type == double.class || type == Long.class) {
+                    return 2;
+                } else if (type == float.class || type == Double.class) {
+                    return 3;
+                } else if (type == short.class || type == byte.class || type == Float.class) {
+                    return 4;
+                } else if (type == Short.class || type == Byte.class) {
+                    return 5;
+                }
+                return boxedFallback(value, Integer.class, type);
+            case T_DOUBLE:
+                if (type == double.class) {
+                    return 0;
+                } else if (type == Double.class || type == float.class) {
+                    return 1;
+                } else if (type == Float.class) {
+                    return 2;
+                } else if (type == long.class || type == int.class || type == Long.class || type == Integer.class) {
+                    return 10;
+                } else if (type == short.class || type == byte.class || type == Short.class || type == Byte.class) {
+                    return 11;
+                }
+                return boxedFallback(value, Double.class, type);
+            case T_STRING:
+                if (type == String.class) {
+                    return 0;
+                } else if (LuaBuffer.isBinaryType(type)) {
+                    return 8;
+                } else if (type == char.class || type == Character.class) {
+                    return value.rawlen() == 1 ? 2 : LENIENT;
+                }
+                return boxedFallback(value, String.class, type);
+            case T_TABLE:
+                if (type.isArray()) {
+                    return elementScore(value.rawget(1), type.getComponentType());
+                } else if (List.class.isAssignableFrom(type) && type.isAssignableFrom(ArrayList.class)) {
+                    return 1;
+                } else if (Map.class.isAssignableFrom(type) && type.isAssignableFrom(HashMap.class)) {
+                    return 2;
+                }
+                return scalarFallback(value, type);
+            case T_USERDATA:
+                Object obj = value.touserdata();
+                if (type.isInstance(obj)) {
+                    return distance(obj.getClass(), type);
+                } else if (obj instanceof ByteBuffer && LuaBuffer.isBinaryType(type)) {
+                    return 1;
+                }
+                return type == String.class ? LENIENT : INAPPLICABLE;
+            default:
+                return scalarFallback(value, type);
+        }
+    }
+
+    // A table passed as an array is scored by its first element, which is also what the
+    // signature records; an empty table fits any array
+    private static int elementScore(LuaValue element, Class<?> component) {
+        if (element.isnil()) {
+            return 1;
+        }
+        int score = score(element, component);
+        return score == INAPPLICABLE ? INAPPLICABLE : 1 + score;
+    }
+
+    // Scalars box into Object, Number, CharSequence and similar supertypes
+    private static int boxedFallback(LuaValue value, Class<?> boxed, Class<?> type) {
+        return type.isAssignableFrom(boxed) ? 6 : scalarFallback(value, type);
+    }
+
+    // Last-resort coercions convertLuaToJava still performs: anything to String, and
+    // numeric strings to numbers
+    private static int scalarFallback(LuaValue value, Class<?> type) {
+        if (type == String.class) {
+            return LENIENT;
+        }
+        if (value.type() == LuaValue.TSTRING && value.isnumber() && NUMERIC.contains(type)) {
+            return LENIENT - 10;
+        }
+        return INAPPLICABLE;
+    }
+
+    // Inheritance steps from a runtime class up to a parameter type; interfaces and Object rank last
+    private static int distance(Class<?> from, Class<?> to) {
+        if (from == to) {
+            return 0;
+        }
+        if (to == Object.class) {
+            return LENIENT - 1;
+        }
+        int steps = 0;
+        for (Class<?> c = from; c != null; c = c.getSuperclass(), steps++) {
+            if (c == to) {
+                return steps;
+            }
+        }
+        return LENIENT - 2;
+    }
+
+    private static int typeCode(LuaValue value) {
+        switch (value.type()) {
+            case LuaValue.TNIL:
+                return T_NIL;
+            case LuaValue.TBOOLEAN:
+                return T_BOOLEAN;
+            case LuaValue.TNUMBER:
+                return value.isinttype() ? T_INT : T_DOUBLE;
+            case LuaValue.TSTRING:
+                return T_STRING;
+            case LuaValue.TTABLE:
+                return T_TABLE;
+            case LuaValue.TUSERDATA:
+                return T_USERDATA;
+            default:
+                return T_OTHER;
+        }
+    }
+
+    // Type code plus what score looks at beyond it: a string's length and whether it is numeric,
+    // and the first element of a table
+    private static int keyCode(LuaValue value) {
+        int code = typeCode(value);
+        if (code == T_STRING) {
+            return code | (value.rawlen() == 1 ? S_CHAR : 0) | (value.isnumber() ? S_NUMERIC : 0);
+        }
+        if (code == T_TABLE) {
+            LuaValue element = value.rawget(1);
+            return element.istable() ? UNCACHEABLE : code | (keyCode(element) + 1) << 5;
+        }
+        return code;
+    }
+
+    // Java class of a userdata argument, or of the first element of a table argument
+    private static Class<?> keyClass(LuaValue value) {
+        if (value.istable()) {
+            value = value.rawget(1);
+        }
+        return value.isuserdata() ? value.touserdata().getClass() : null;
+    }
+
+    // Lua argument types (see keyCode), plus the Java classes from keyClass
+    private static final class Signature {
+        final int[] codes;
+        final Class<?>[] classes;
+        final int hash;
+
+        private Signature(int[] codes, Class<?>[] classes) {
+            this.codes = codes;
+            this.classes = classes;
+            this.hash = 31 * Arrays.hashCode(codes) + Arrays.hashCode(classes);
+        }
+
+        // Null when an argument can't be keyed, see keyCode
+        static Signature of(Varargs args, int first) {
+            int count = Math.max(0, args.narg() - first + 1);
+            int[] codes = new int[count];
+            Class<?>[] classes = new Class<?>[count];
+            for (int i = 0; i < count; i++) {
+                LuaValue arg = args.arg(first + i);
+                codes[i] = keyCode(arg);
+                if (codes[i] == UNCACHEABLE) {
+                    return null;
+                }
+                classes[i] = keyClass(arg);
+            }
+            return new Signature(codes, classes);
+        }
+
+        // Allocation-free comparison against live arguments
+        boolean matches(Varargs args, int first) {
+            if (Math.max(0, args.narg() - first + 1) != codes.length) {
+                return false;
+            }
+            for (int i = 0; i < codes.length; i++) {
+                LuaValue arg = args.arg(first + i);
+                if (keyCode(arg) != codes[i] || keyClass(arg) != classes[i]) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof Signature)) {
+                return false;
+            }
+            Signature other = (Signature) o;
+            return Arrays.equals(codes, other.codes) && Arrays.equals(classes, other.classes);
+        }
+
+        @Override
+        public int hashCode() {
+            return hash;
+        }
+    }
+}
@@ -0,0 +1,272 @@
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.file.*;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+import java.util.zip.InflaterInputStream;
+
+// Applies a compiled mod (see PatchCompiler) to the original SWF it was made from. Uses nothing
+// but java.*, so it can be shipped on its own to end users who have neither JPEXS nor LuaJ:
+//   java -cp yajml.jar PatchApplier mod.yjp game.swf [output.swf]
+// The original is memory-mapped (read into the heap instead when it is also the output, or on
+// Windows), checked against the hash in the patch, and the result is
+// streamed to a temp file and moved over the output (default: the original) only once its
+// hash matches too.
+//
+// Patch layout: MAGIC, FORMAT, SHA-256 of the original file, SHA-256 of the uncompressed
+// result, output compression (0 none, 1 zlib), zlib level, uncompressed result length, then a
+// deflated stream of operations on the uncompressed SWF:
+//   COPY   varint offset, varint length   bytes from the original
+//   INSERT varint length, bytes           new bytes
+//   END
+public final class PatchApplier {
+    static final byte[] MAGIC = {'Y', 'J', 'M', 'L', 'D', 'I', 'F', 'F'};
+    static final int FORMAT = 1;
+    static final int END = 0;
+    static final int COPY = 1;
+    static final int INSERT = 2;
+    static final int COMPRESSION_NONE = 0;
+    static final int COMPRESSION_ZLIB = 1;
+
+    private static final int BUFFER_SIZE = 1 << 16;
+    // Same switch as SwfCache: a mapped file can't be replaced on Windows until it is collected
+    private static final boolean MMAP = Boolean.parseBoolean(System.getProperty("yajml.mmap",
+            String.valueOf(!System.getProperty("os.name", "").startsWith("Windows"))));
+
+    private PatchApplier() {
+    }
+
+    public static void main(String[] args) {
+        System.exit(run(args));
+    }
+
+    // apply mod.yjp game.swf [output.swf]
+    static int run(String[] args) {
+        if (args.length < 2 || args.length > 3) {
+            System.err.println("Usage: apply mod.yjp game.swf [output.swf]");
+            return 2;
+        }
+        long start = System.nanoTime();
+        try {
+            Path output = Paths.get(args.length > 2 ? args[2] : args[1]);
+            long bytes = apply(Paths.get(args[0]), Paths.get(args[1]), output);
+            System.out.println(String.format("Patched %s (%d bytes) in %.1f ms", output, bytes, (System.nanoTime() - start) / 1e6));
+            return 0;
+        } catch (IOException e) {
+            System.err.println("Error applying patch: " + e.getMessage());
+            return 1;
+        }
+    }
+
+    // Returns the size of the written file
+    static long apply(Path patch, Path original, Path output) throws IOException {
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(patch), BUFFER_SIZE))) {
+            byte[] magic = new byte[MAGIC.length];
+            in.readFully(magic);
+            if (!Arrays.equals(magic, MAGIC) || in.readUnsignedByte() != FORMAT) {
+                throw new IOException(patch + " is not a compiled mod for this version");
+            }
+            byte[] originalHash = new byte[32];
+            byte[] resultHash = new byte[32];
+            in.readFully(originalHash);
+            in.readFully(resultHash);
+            int compression = in.readUnsignedByte();
+            int level = in.readUnsignedByte();
+            long resultLength = in.readLong();
+
+            Path target = output.toAbsolutePath();
+            // A mapping of the file being replaced would still be open at the move
+            boolean inPlace = Files.exists(target) && Files.isSameFile(original, target);
+            ByteBuffer file = read(original, MMAP && !inPlace);
+            MessageDigest digest = sha256();
+            digest.update(file.duplicate());
+            if (!Arrays.equals(digest.digest(), originalHash)) {
+                throw new IOException(original + " is not the file this mod was compiled against");
+            }
+            ByteBuffer base = uncompressed(file);
+
+            Path temp = target.resolveSibling(target.getFileName() + "." + Long.toHexString(System.nanoTime()) + ".tmp");
+            try {
+                try (FileChannel channel = FileChannel.open(temp, StandardOpenOption.WRITE, StandardOpenOption.CREATE_NEW)) {
+                    OutputStream out = new BufferedOutputStream(Channels.newOutputStream(channel), BUFFER_SIZE);
+                    HashingOutputStream result = new HashingOutputStream(
+                            compression == COMPRESSION_ZLIB ? new ZlibBodyOutputStream(out, level, BUFFER_SIZE) : out);
+                    replay(new DataInputStream(new InflaterInputStream(in, new Inflater(), BUFFER_SIZE)), base, result);
+                    result.close();
+
+                    if (result.count != resultLength || !Arrays.equals(result.digest.digest(), resultHash)) {
+                        throw new IOException("Patched file does not match the compiled mod; the patch may be damaged");
+                    }
+                }
+                Files.move(temp, target, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            } finally {
+                Files.deleteIfExists(temp);
+            }
+            return Files.size(target);
+        }
+    }
+
+    // The whole file, mapped or read into the heap; the channel is closed either way
+    private static ByteBuffer read(Path path, boolean map) throws IOException {
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            long size = channel.size();
+            if (map) {
+                return channel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+            }
+            if (size > Integer.MAX_VALUE) {
+                throw new IOException(path + " is too large");
+            }
+            ByteBuffer buffer = ByteBuffer.allocate((int) size);
+            while (buffer.hasRemaining() && channel.read(buffer) >= 0) {
+                // keep reading
+            }
+            buffer.flip();
+            return buffer;
+        }
+    }
+
+    private static void replay(DataInputStream ops, ByteBuffer base, OutputStream out) throws IOException {
+        byte[] buffer = new byte[BUFFER_SIZE];
+        while (true) {
+            int op = ops.readUnsignedByte();
+            if (op == END) {
+                return;
+            }
+            long length;
+            switch (op) {
+                case COPY:
+                    long offset = readVarLong(ops);
+                    length = readVarLong(ops);
+                    if (offset < 0 || offset + length > base.limit()) {
+                        throw new IOException("Patch copies past the end of the original");
+                    }
+                    ByteBuffer range = base.duplicate();
+                    range.position((int) offset);
+                    while (length > 0) {
+                        int n = (int) Math.min(length, buffer.length);
+                        range.get(buffer, 0, n);
+                        out.write(buffer, 0, n);
+                        length -= n;
+                    }
+                    break;
+                case INSERT:
+                    length = readVarLong(ops);
+                    while (length > 0) {
+                        int n = (int) Math.min(length, buffer.length);
+                        ops.readFully(buffer, 0, n);
+                        out.write(buffer, 0, n);
+                        length -= n;
+                    }
+                    break;
+                default:
+                    throw new IOException("Unknown patch operation " + op);
+            }
+        }
+    }
+
+    // The uncompressed SWF: the mapped file itself for FWS, inflated into the heap for CWS
+    static ByteBuffer uncompressed(ByteBuffer file) throws IOException {
+        if (file.remaining() < 8 || file.get(1) != 'W' || file.get(2) != 'S') {
+            throw new IOException("Not a SWF file");
+        }
+        switch (file.get(0)) {
+            case 'F':
+                return file.duplicate();
+            case 'C':
+                long length = (file.get(4) & 0xFFL) | (file.get(5) & 0xFFL) << 8
+                        | (file.get(6) & 0xFFL) << 16 | (file.get(7) & 0xFFL) << 24;
+                if (length < 8 || length > Integer.MAX_VALUE) {
+                    throw new IOException("Bad SWF length " + length);
+                }
+                byte[] body = new byte[(int) length];
+                for (int i = 0; i < 8; i++) {
+                    body[i] = file.get(i);
+                }
+                body[0] = 'F';
+                ByteBuffer compressed = file.duplicate();
+                compressed.position(8);
+                byte[] chunk = new byte[BUFFER_SIZE];
+                Inflater inflater = new Inflater();
+                try {
+                    int written = 8;
+                    while (written < body.length && !inflater.finished()) {
+                        if (inflater.needsInput()) {
+                            if (!compressed.hasRemaining()) {
+                                break;
+                            }
+                            int n = Math.min(chunk.length, compressed.remaining());
+                            compressed.get(chunk, 0, n);
+                            inflater.setInput(chunk, 0, n);
+                        }
+                        written += inflater.inflate(body, written, body.length - written);
+                    }
+                    // Some tools write a header length that disagrees with the data; trust the data
+                    return ByteBuffer.wrap(body, 0, written);
+                } catch (DataFormatException e) {
+                    throw new IOException("Corrupt zlib data in SWF: " + e.getMessage());
+                } finally {
+                    inflater.end();
+                }
+            default:
+                // LZMA (ZWS) would need a decoder outside the JDK
+                throw new IOException("Only uncompressed and zlib SWFs are supported");
+        }
+    }
+
+    static void writeVarLong(DataOutput out, long value) throws IOException {
+        while ((value & ~0x7FL) != 0) {
+            out.writeByte((int) ((value & 0x7F) | 0x80));
+            value >>>= 7;
+        }
+        out.writeByte((int) value);
+    }
+
+    private static long readVarLong(DataInput in) throws IOException {
+        long value = 0;
+        for (int shift = 0; shift < 64; shift += 7) {
+            int b = in.readUnsignedByte();
+            value |= (long) (b & 0x7F) << shift;
+            if ((b & 0x80) == 0) {
+                return value;
+            }
+        }
+        throw new IOException("Malformed varint in patch");
+    }
+
+    static MessageDigest sha256() {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    // Hashes and counts the uncompressed result on its way out
+    private static final class HashingOutputStream extends FilterOutputStream {
+        final MessageDigest digest = sha256();
+        long count;
+
+        HashingOutputStream(OutputStream out) {
+            super(out);
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            digest.update((byte) b);
+            count++;
+            out.write(b);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            digest.update(b, off, len);
+            count += len;
+            out.write(b, off, len);
+        }
+    }
+}
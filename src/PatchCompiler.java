@@ -0,0 +1,326 @@
+import org.luaj.vm2.*;
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.*;
+import java.security.MessageDigest;
+import java.util.Arrays;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import com.jpexs.decompiler.flash.SWF;
+import com.jpexs.decompiler.flash.SWFCompression;
+
+// Compiles a mod script into a binary patch: the script runs once against the original SWF,
+// the result is diffed against the original, and PatchApplier can then install it without
+// JPEXS or LuaJ. Both sides are compared uncompressed, since recompressing changes every byte
+// of a CWS file while JPEXS copies the bytes of untouched tags verbatim; the applier
+// recompresses the result the way the original was compressed.
+//   compile [--level N] script.lua game.swf mod.yjp      N: zlib level 0-9, -1 for the default
+// Inside the script the SWF path is ... and arg[1], the SWF is the second vararg, and
+// jpexs.openSWF(path) returns that SWF; the script should not save it.
+final class PatchCompiler {
+    // Matches shorter than this are stored as inserted bytes
+    private static final int BLOCK = 32;
+    private static final int PRIME = 0x01000193;
+
+    private PatchCompiler() {
+    }
+
+    static int run(String[] args) {
+        int level = Deflater.DEFAULT_COMPRESSION;
+        int next = 0;
+        if (args.length > 1 && args[0].equals("--level")) {
+            level = parseLevel(args[1]);
+            next = 2;
+        }
+        if (args.length - next != 3 || level == Integer.MIN_VALUE) {
+            System.err.println("Usage: compile [--level N] script.lua game.swf mod.yjp  (N is 0-9, or -1 for the default)");
+            return 2;
+        }
+        String script = args[next];
+        Path original = Paths.get(args[next + 1]);
+        Path patch = Paths.get(args[next + 2]);
+
+        try {
+            long start = System.nanoTime();
+            byte[] fileHash;
+            byte[] base;
+            boolean zlib;
+            try (FileChannel channel = FileChannel.open(original, StandardOpenOption.READ)) {
+                ByteBuffer mapped = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+                MessageDigest digest = PatchApplier.sha256();
+                digest.update(mapped.duplicate());
+                fileHash = digest.digest();
+                zlib = mapped.get(0) == 'C';
+                base = toArray(PatchApplier.uncompressed(mapped));
+            }
+
+            byte[] result = runScript(script, original);
+            long scripted = System.nanoTime();
+
+            Stats stats = write(patch, fileHash, base, result, zlib ? PatchApplier.COMPRESSION_ZLIB : PatchApplier.COMPRESSION_NONE,
+                    level < 0 ? 6 : level);
+            long done = System.nanoTime();
+
+            System.out.println(String.format("Compiled %s: %d byte patch for a %d byte SWF (%d copied, %d inserted in %d operations)",
+                    patch, Files.size(patch), result.length, stats.copied, stats.inserted, stats.operations));
+            System.out.println(String.format("Script and save %.1f ms, diff %.1f ms", (scripted - start) / 1e6, (done - scripted) / 1e6));
+            return 0;
+        } catch (IOException | LuaError e) {
+            System.err.println("Error compiling mod: " + e.getMessage());
+            return 1;
+        }
+    }
+
+    // A zlib level from -1 (default) to 9, or Integer.MIN_VALUE if value isn't one
+    private static int parseLevel(String value) {
+        try {
+            int level = Integer.parseInt(value);
+            return level >= Deflater.DEFAULT_COMPRESSION && level <= Deflater.BEST_COMPRESSION ? level : Integer.MIN_VALUE;
+        } catch (NumberFormatException e) {
+            return Integer.MIN_VALUE;
+        }
+    }
+
+    // Run the script against a fresh parse of original and return the uncompressed result
+    private static byte[] runScript(String script, Path original) throws IOException {
+        Prototype prototype = BatchRunner.compile(script);
+        SWF swf;
+        try (InputStream in = new BufferedInputStream(Files.newInputStream(original))) {
+            swf = new SWF(in, true);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Parsing interrupted");
+        }
+
+        Main.jpexsAutoLib lib = Main.createLibrary();
+        try {
+            String path = original.toString();
+            lib.share(path, swf);
+            Globals globals = lib.globals();
+            LuaTable arg = new LuaTable();
+            arg.set(0, LuaValue.valueOf(script));
+            arg.set(1, LuaValue.valueOf(path));
+            globals.set("arg", arg);
+            globals.loader.load(prototype, "@" + script, globals).invoke(LuaValue.varargsOf(LuaValue.valueOf(path), lib.wrapObject(swf)));
+        } finally {
+            lib.release();
+        }
+        if (lib.takeUnownedWrites(swf)) {
+            // As in saveSWF: the edit could be in any tag, so none of them can be copied verbatim
+            SwfWriter.markAllModified(swf);
+        }
+
+        SWFCompression compression = swf.compression;
+        try {
+            swf.compression = SWFCompression.NONE;
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            swf.saveTo(out);
+            return out.toByteArray();
+        } finally {
+            swf.compression = compression;
+        }
+    }
+
+    private static final class Stats {
+        long copied;
+        long inserted;
+        int operations;
+    }
+
+    private static Stats write(Path patch, byte[] fileHash, byte[] base, byte[] result, int compression, int level) throws IOException {
+        MessageDigest digest = PatchApplier.sha256();
+        digest.update(result);
+
+        Path target = patch.toAbsolutePath();
+        if (target.getParent() != null) {
+            Files.createDirectories(target.getParent());
+        }
+        Stats stats = new Stats();
+        // Written next to the target and moved over it, so a failed compile leaves any earlier patch intact
+        Path temp = target.resolveSibling(target.getFileName() + "." + Long.toHexString(System.nanoTime()) + ".tmp");
+        try {
+            writePatch(temp, fileHash, digest.digest(), base, result, compression, level, stats);
+            Files.move(temp, target, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } finally {
+            Files.deleteIfExists(temp);
+        }
+        return stats;
+    }
+
+    private static void writePatch(Path file, byte[] fileHash, byte[] resultHash, byte[] base, byte[] result,
+                                   int compression, int level, Stats stats) throws IOException {
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(
+                Files.newOutputStream(file, StandardOpenOption.WRITE, StandardOpenOption.CREATE_NEW)))) {
+            out.write(PatchApplier.MAGIC);
+            out.writeByte(PatchApplier.FORMAT);
+            out.write(fileHash);
+            out.write(resultHash);
+            out.writeByte(compression);
+            out.writeByte(level);
+            out.writeLong(result.length);
+
+            Deflater deflater = new Deflater(Deflater.BEST_COMPRESSION);
+            try {
+                DeflaterOutputStream deflated = new DeflaterOutputStream(out, deflater, 1 << 16);
+                DataOutputStream ops = new DataOutputStream(deflated);
+                diff(base, result, ops, stats);
+                ops.writeByte(PatchApplier.END);
+                ops.flush();
+                deflated.finish();
+            } finally {
+                deflater.end();
+            }
+        }
+    }
+
+    // Greedy block-matching diff: every BLOCK-aligned block of base is indexed by a rolling hash,
+    // result is scanned byte by byte, and each hit is extended both ways into one COPY
+    private static void diff(byte[] base, byte[] result, DataOutputStream ops, Stats stats) throws IOException {
+        BlockIndex index = new BlockIndex(base);
+        int pending = 0;
+        long copyOffset = -1;
+        long copyLength = 0;
+
+        int power = 1;
+        for (int i = 1; i < BLOCK; i++) {
+            power *= PRIME;
+        }
+
+        int j = 0;
+        int hash = result.length >= BLOCK ? hash(result, 0) : 0;
+        while (j + BLOCK <= result.length) {
+            int o = index.find(hash, result, j);
+            if (o < 0) {
+                if (j + BLOCK < result.length) {
+                    hash = (hash - result[j] * power) * PRIME + result[j + BLOCK];
+                }
+                j++;
+                continue;
+            }
+
+            int start = j;
+            while (start > pending && o > 0 && result[start - 1] == base[o - 1]) {
+                start--;
+                o--;
+            }
+            int end = j + BLOCK;
+            int baseEnd = o + (end - start);
+            while (end < result.length && baseEnd < base.length && result[end] == base[baseEnd]) {
+                end++;
+                baseEnd++;
+            }
+
+            if (start > pending) {
+                flushCopy(ops, copyOffset, copyLength, stats);
+                copyLength = 0;
+                insert(ops, result, pending, start - pending, stats);
+            }
+            if (copyLength > 0 && copyOffset + copyLength == o) {
+                copyLength += end - start;
+            } else {
+                flushCopy(ops, copyOffset, copyLength, stats);
+                copyOffset = o;
+                copyLength = end - start;
+            }
+
+            pending = end;
+            j = end;
+            if (j + BLOCK <= result.length) {
+                hash = hash(result, j);
+            }
+        }
+
+        flushCopy(ops, copyOffset, copyLength, stats);
+        if (pending < result.length) {
+            insert(ops, result, pending, result.length - pending, stats);
+        }
+    }
+
+    private static void flushCopy(DataOutputStream ops, long offset, long length, Stats stats) throws IOException {
+        if (length > 0) {
+            ops.writeByte(PatchApplier.COPY);
+            PatchApplier.writeVarLong(ops, offset);
+            PatchApplier.writeVarLong(ops, length);
+            stats.copied += length;
+            stats.operations++;
+        }
+    }
+
+    private static void insert(DataOutputStream ops, byte[] data, int offset, int length, Stats stats) throws IOException {
+        ops.writeByte(PatchApplier.INSERT);
+        PatchApplier.writeVarLong(ops, length);
+        ops.write(data, offset, length);
+        stats.inserted += length;
+        stats.operations++;
+    }
+
+    private static int hash(byte[] data, int offset) {
+        int h = 0;
+        for (int i = 0; i < BLOCK; i++) {
+            h = h * PRIME + data[offset + i];
+        }
+        return h;
+    }
+
+    // Open-addressing table from block hash to the first base offset with that hash
+    private static final class BlockIndex {
+        private final byte[] base;
+        private final int[] hashes;
+        private final int[] offsets;
+        private final int mask;
+
+        BlockIndex(byte[] base) {
+            this.base = base;
+            int blocks = base.length / BLOCK;
+            int capacity = Integer.highestOneBit(Math.max(16, blocks * 2)) << 1;
+            hashes = new int[capacity];
+            offsets = new int[capacity];
+            Arrays.fill(offsets, -1);
+            mask = capacity - 1;
+
+            for (int offset = 0; offset + BLOCK <= base.length; offset += BLOCK) {
+                int h = hash(base, offset);
+                int slot = mix(h) & mask;
+                while (offsets[slot] >= 0 && hashes[slot] != h) {
+                    slot = (slot + 1) & mask;
+                }
+                // Keep the first block for each hash, so long runs of equal blocks stay cheap
+                if (offsets[slot] < 0) {
+                    hashes[slot] = h;
+                    offsets[slot] = offset;
+                }
+            }
+        }
+
+        // Base offset of a block equal to data[at, at + BLOCK), or -1
+        int find(int h, byte[] data, int at) {
+            int slot = mix(h) & mask;
+            while (offsets[slot] >= 0) {
+                if (hashes[slot] == h) {
+                    int offset = offsets[slot];
+                    for (int i = 0; i < BLOCK; i++) {
+                        if (base[offset + i] != data[at + i]) {
+                            return -1;
+                        }
+                    }
+                    return offset;
+                }
+                slot = (slot + 1) & mask;
+            }
+            return -1;
+        }
+
+        private static int mix(int h) {
+            h ^= h >>> 16;
+            h *= 0x85ebca6b;
+            return h ^ h >>> 13;
+        }
+    }
+
+    private static byte[] toArray(ByteBuffer buffer) {
+        byte[] bytes = new byte[buffer.remaining()];
+        buffer.duplicate().get(bytes);
+        return bytes;
+    }
+}
@@ -0,0 +1,185 @@
+import org.luaj.vm2.*;
+import org.luaj.vm2.compiler.DumpState;
+import org.luaj.vm2.luajc.LuaJC;
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.*;
+import java.util.concurrent.atomic.AtomicLong;
+
+// Compiled-script cache installed as the Globals compiler, so the main script, require()d
+// modules and loadstring chunks all go through it. Prototypes are keyed by a SHA-256 of the
+// chunk name and source; they are kept in memory for the life of the JVM (shared by batch
+// workers and server requests, since prototypes are immutable) and as LuaJ bytecode on disk.
+//
+// System properties:
+//   yajml.scriptCache  directory for .luac files (default ~/.yajml/luac), or "off"
+//   yajml.luajc        "true" to turn prototypes into JVM classes with LuaJC, which needs BCEL;
+//                      anything that fails to compile falls back to the interpreter
+//   yajml.timing       "true" to print cache statistics when the main script finishes
+final class ScriptCache implements Globals.Compiler {
+    private static final int MEMORY_ENTRIES = 256;
+    // Bumped when the file layout changes, so stale files are simply never looked up
+    private static final String FORMAT = "luaj-3.0.1/1";
+
+    private static final String DIRECTORY = System.getProperty("yajml.scriptCache",
+            Paths.get(System.getProperty("user.home"), ".yajml", "luac").toString());
+    private static final boolean ENABLED = !DIRECTORY.equals("off");
+    static final boolean LUAJC = Boolean.getBoolean("yajml.luajc");
+    static final boolean TIMING = Boolean.getBoolean("yajml.timing");
+
+    private static final Map<String, Entry> memory = Collections.synchronizedMap(
+            new LinkedHashMap<String, Entry>(64, 0.75f, true) {
+                @Override
+                protected boolean removeEldestEntry(Map.Entry<String, Entry> eldest) {
+                    return size() > MEMORY_ENTRIES;
+                }
+            });
+
+    private static final AtomicLong memoryHits = new AtomicLong();
+    private static final AtomicLong diskHits = new AtomicLong();
+    private static final AtomicLong misses = new AtomicLong();
+    private static final AtomicLong compileNanos = new AtomicLong();
+    private static final AtomicLong savedNanos = new AtomicLong();
+    private static final AtomicLong jitFallbacks = new AtomicLong();
+
+    private final Globals.Compiler compiler;
+    private final Globals.Undumper undumper;
+
+    // Prototype plus how long it originally took to compile, to estimate the time saved
+    private static final class Entry {
+        final Prototype prototype;
+        final long compileNanos;
+
+        Entry(Prototype prototype, long compileNanos) {
+            this.prototype = prototype;
+            this.compileNanos = compileNanos;
+        }
+    }
+
+    private ScriptCache(Globals.Compiler compiler, Globals.Undumper undumper) {
+        this.compiler = compiler;
+        this.undumper = undumper;
+    }
+
+    // Put the cache in front of the compiler, and LuaJC in front of the loader when enabled
+    static void install(Globals globals) {
+        if (ENABLED && globals.compiler != null && !(globals.compiler instanceof ScriptCache)) {
+            globals.compiler = new ScriptCache(globals.compiler, globals.undumper);
+        }
+        if (LUAJC && globals.loader != null) {
+            globals.loader = jitLoader(globals.loader);
+        }
+    }
+
+    @Override
+    public Prototype compile(InputStream stream, String chunkname) throws IOException {
+        byte[] source = readAll(stream);
+        String key = key(chunkname, source);
+
+        Entry entry = memory.get(key);
+        if (entry != null) {
+            memoryHits.incrementAndGet();
+            savedNanos.addAndGet(entry.compileNanos);
+            return entry.prototype;
+        }
+
+        Path file = Paths.get(DIRECTORY, key + ".luac");
+        long start = System.nanoTime();
+        entry = readEntry(file, chunkname);
+        if (entry != null) {
+            diskHits.incrementAndGet();
+            savedNanos.addAndGet(Math.max(0, entry.compileNanos - (System.nanoTime() - start)));
+        } else {
+            start = System.nanoTime();
+            Prototype prototype = compiler.compile(new ByteArrayInputStream(source), chunkname);
+            entry = new Entry(prototype, System.nanoTime() - start);
+            misses.incrementAndGet();
+            compileNanos.addAndGet(entry.compileNanos);
+            writeEntry(file, entry);
+        }
+
+        memory.put(key, entry);
+        return entry.prototype;
+    }
+
+    // One-line summary of cache activity in this JVM
+    static String report() {
+        return String.format("Script cache: %d memory hits, %d disk hits, %d compiled in %.1f ms, ~%.1f ms of compiling saved%s",
+                memoryHits.get(), diskHits.get(), misses.get(), compileNanos.get() / 1e6, savedNanos.get() / 1e6,
+                LUAJC ? String.format(", %d LuaJC fallbacks to the interpreter", jitFallbacks.get()) : "");
+    }
+
+    // Loader that turns prototypes into JVM classes, keeping the interpreter for anything LuaJC rejects
+    private static Globals.Loader jitLoader(Globals.Loader interpreter) {
+        return (prototype, chunkname, env) -> {
+            try {
+                return LuaJC.instance.load(prototype, chunkname, env);
+            } catch (IOException | RuntimeException | LinkageError e) {
+                // LinkageError covers a missing BCEL jar as well as generated code the verifier rejects
+                jitFallbacks.incrementAndGet();
+                return interpreter.load(prototype, chunkname, env);
+            }
+        };
+    }
+
+    private Entry readEntry(Path file, String chunkname) {
+        if (!Files.isRegularFile(file)) {
+            return null;
+        }
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(file)))) {
+            long nanos = in.readLong();
+            Prototype prototype = undumper.undump(in, chunkname);
+            return prototype != null ? new Entry(prototype, nanos) : null;
+        } catch (IOException | RuntimeException e) {
+            // Truncated or foreign file; it is rewritten after compiling
+            return null;
+        }
+    }
+
+    private static void writeEntry(Path file, Entry entry) {
+        try {
+            Files.createDirectories(file.getParent());
+            // Write to a temporary file first so concurrent readers never see a partial dump
+            Path temp = Files.createTempFile(file.getParent(), "luac", ".tmp");
+            try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(temp)))) {
+                out.writeLong(entry.compileNanos);
+                DumpState.dump(entry.prototype, out, false);
+            }
+            Files.move(temp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException e) {
+            System.err.println("Warning: could not write script cache " + file + ": " + e.getMessage());
+        }
+    }
+
+    private static String key(String chunkname, byte[] source) {
+        try {
+            MessageDigest digest = MessageDigest.getInstance("SHA-256");
+            digest.update(FORMAT.getBytes(StandardCharsets.UTF_8));
+            digest.update((byte) 0);
+            digest.update(chunkname.getBytes(StandardCharsets.UTF_8));
+            digest.update((byte) 0);
+            digest.update(source);
+
+            StringBuilder hex = new StringBuilder();
+            for (byte b : digest.digest()) {
+                hex.append(String.format("%02x", b));
+            }
+            return hex.toString();
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static byte[] readAll(InputStream stream) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        byte[] buffer = new byte[8192];
+        int n;
+        while ((n = stream.read(buffer)) != -1) {
+            out.write(buffer, 0, n);
+        }
+        return out.toByteArray();
+    }
+}
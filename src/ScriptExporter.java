@@ -0,0 +1,362 @@
+import org.luaj.vm2.*;
+import java.io.*;
+import java.lang.reflect.Field;
+import java.lang.reflect.Modifier;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.*;
+import java.util.concurrent.*;
+import com.jpexs.decompiler.flash.SWF;
+import com.jpexs.decompiler.flash.abc.ABC;
+import com.jpexs.decompiler.flash.abc.ScriptPack;
+import com.jpexs.decompiler.flash.abc.avm2.AVM2ConstantPool;
+import com.jpexs.decompiler.flash.abc.types.ClassInfo;
+import com.jpexs.decompiler.flash.abc.types.InstanceInfo;
+import com.jpexs.decompiler.flash.abc.types.MethodBody;
+import com.jpexs.decompiler.flash.abc.types.ScriptInfo;
+import com.jpexs.decompiler.flash.abc.types.traits.Trait;
+import com.jpexs.decompiler.flash.abc.types.traits.TraitClass;
+import com.jpexs.decompiler.flash.abc.types.traits.TraitFunction;
+import com.jpexs.decompiler.flash.abc.types.traits.TraitMethodGetterSetter;
+
+// jpexs.decompileAll: decompiles every AS3 script pack of a SWF on a fork-join pool. Results
+// are written to disk by the workers and handed to the Lua callback on the script's thread as
+// they complete. Output is cached on disk per class, keyed by a hash of the class's own traits
+// and method bodies plus the constants and closures of its ABC, so patching one class does not
+// force the others to be decompiled again.
+//
+// System property:
+//   yajml.decompileCache  cache directory (default ~/.yajml/decompiled), or "off"
+final class ScriptExporter {
+    private static final String CACHE_DIRECTORY = System.getProperty("yajml.decompileCache",
+            Paths.get(System.getProperty("user.home"), ".yajml", "decompiled").toString());
+
+    private ScriptExporter() {
+    }
+
+    // Outcome for one script pack
+    private static final class Result {
+        final String classPath;
+        String source;
+        String error;
+        boolean cached;
+
+        Result(String classPath) {
+            this.classPath = classPath;
+        }
+    }
+
+    // decompileAll(swf [, {dir=, callback=, threads=, cache=}]) -> {classes, decompiled, cached, failed, millis, errors[, sources]}
+    // Without dir or callback the sources are returned in the report, keyed by class path.
+    static LuaValue decompileAll(Main.jpexsAutoLib lib, SWF swf, LuaValue options) {
+        long start = System.nanoTime();
+        LuaTable opts = options.istable() ? options.checktable() : new LuaTable();
+        String dir = opts.get("dir").isnil() ? null : lib.resolve(opts.get("dir").checkjstring());
+        LuaValue callback = opts.get("callback");
+        int threads = opts.get("threads").optint(Runtime.getRuntime().availableProcessors());
+        boolean useCache = opts.get("cache").optboolean(true) && !CACHE_DIRECTORY.equals("off");
+
+        List<ScriptPack> packs;
+        try {
+            packs = swf.getAS3Packs();
+        } catch (RuntimeException e) {
+            throw Main.jpexsAutoLib.bridgeError("Error listing scripts: ", e);
+        }
+
+        Map<ScriptPack, String> keys = useCache ? keys(packs) : Collections.emptyMap();
+
+        ForkJoinPool pool = new ForkJoinPool(Math.max(1, threads));
+        BlockingQueue<Result> completed = new LinkedBlockingQueue<>();
+        try {
+            for (ScriptPack pack : packs) {
+                String key = keys.get(pack);
+                pool.execute(() -> completed.add(decompile(swf, pack, key, dir)));
+            }
+
+            LuaTable sources = dir == null && callback.isnil() ? new LuaTable() : null;
+            LuaTable errors = new LuaTable();
+            int decompiled = 0;
+            int cached = 0;
+
+            // Drain on the Lua thread, since callbacks must not run on the workers
+            for (int i = 0; i < packs.size(); i++) {
+                Result result = completed.take();
+                if (result.error != null) {
+                    errors.set(result.classPath, result.error);
+                    continue;
+                }
+                if (result.cached) {
+                    cached++;
+                } else {
+                    decompiled++;
+                }
+                if (sources != null) {
+                    sources.set(result.classPath, result.source);
+                }
+                if (!callback.isnil()) {
+                    callback.call(LuaValue.valueOf(result.classPath), LuaValue.valueOf(result.source));
+                }
+            }
+
+            LuaTable report = new LuaTable();
+            report.set("classes", packs.size());
+            report.set("decompiled", decompiled);
+            report.set("cached", cached);
+            report.set("failed", packs.size() - decompiled - cached);
+            report.set("millis", (System.nanoTime() - start) / 1e6);
+            report.set("errors", errors);
+            if (sources != null) {
+                report.set("sources", sources);
+            }
+            return report;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new LuaError("Decompilation interrupted");
+        } finally {
+            pool.shutdownNow();
+        }
+    }
+
+    // Always returns a Result, even when the worker hits an Error, or the drain loop would wait
+    // for it forever
+    private static Result decompile(SWF swf, ScriptPack pack, String key, String dir) {
+        Result result = new Result(classPath(pack));
+        Path cacheFile = key != null ? Paths.get(CACHE_DIRECTORY, key.substring(0, 2), key + ".as") : null;
+
+        try {
+            if (cacheFile != null && Files.isRegularFile(cacheFile)) {
+                result.source = new String(Files.readAllBytes(cacheFile), StandardCharsets.UTF_8);
+                result.cached = true;
+            } else {
+                result.source = swf.getCached(pack).text;
+                if (cacheFile != null) {
+                    writeAtomically(cacheFile, result.source);
+                }
+            }
+
+            if (dir != null) {
+                Path out = Paths.get(dir, result.classPath.replace('.', File.separatorChar) + ".as");
+                Files.createDirectories(out.getParent());
+                Files.write(out, result.source.getBytes(StandardCharsets.UTF_8));
+            }
+        } catch (InterruptedException e) {
+            result.error = "interrupted";
+        } catch (Throwable e) {
+            result.error = e.getClass().getSimpleName() + ": " + e.getMessage();
+        }
+        return result;
+    }
+
+    private static String classPath(ScriptPack pack) {
+        try {
+            return String.valueOf(pack.getClassPath());
+        } catch (RuntimeException e) {
+            return "<unknown " + System.identityHashCode(pack) + ">";
+        }
+    }
+
+    private static void writeAtomically(Path file, String text) throws IOException {
+        Files.createDirectories(file.getParent());
+        Path temp = Files.createTempFile(file.getParent(), "as", ".tmp");
+        Files.write(temp, text.getBytes(StandardCharsets.UTF_8));
+        Files.move(temp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    // One SHA-256 key per pack, over the decompiler version, the class path, the pack's traits
+    // and the signatures and bodies of the methods they reach, plus a hash of what any class of
+    // the ABC may use: the constant pool and the bodies no trait reaches, such as closures. So a
+    // patch to one class's code leaves the other keys alone, while a changed constant still
+    // invalidates the whole ABC. A pack whose structures can't be walked is not cached.
+    private static Map<ScriptPack, String> keys(List<ScriptPack> packs) {
+        Map<ScriptPack, Set<Integer>> methods = new IdentityHashMap<>();
+        Map<ScriptPack, List<Object>> traits = new IdentityHashMap<>();
+        Map<ABC, Set<Integer>> reached = new IdentityHashMap<>();
+        for (ScriptPack pack : packs) {
+            try {
+                Set<Integer> packMethods = new TreeSet<>();
+                List<Object> packTraits = new ArrayList<>();
+                ScriptInfo script = pack.abc.script_info.get(pack.scriptIndex);
+                packMethods.add(script.init_index);
+                for (int index : pack.traitIndices) {
+                    collect(pack.abc, script.traits.traits.get(index), packMethods, packTraits);
+                }
+                methods.put(pack, packMethods);
+                traits.put(pack, packTraits);
+                reached.computeIfAbsent(pack.abc, abc -> new HashSet<>()).addAll(packMethods);
+            } catch (RuntimeException e) {
+                // Left out of the cache
+            }
+        }
+
+        Map<ABC, String> shared = new IdentityHashMap<>();
+        Map<ScriptPack, String> keys = new IdentityHashMap<>();
+        for (ScriptPack pack : methods.keySet()) {
+            try {
+                String abcHash = shared.computeIfAbsent(pack.abc, abc -> shared(abc, reached.get(abc)));
+                MessageDigest digest = sha256();
+                // Output also depends on the decompiler itself
+                text(digest, String.valueOf(SWF.class.getPackage().getImplementationVersion()));
+                text(digest, abcHash);
+                text(digest, classPath(pack));
+                digest(digest, traits.get(pack), 0);
+                for (int index : methods.get(pack)) {
+                    text(digest, String.valueOf(index));
+                    digest(digest, pack.abc.method_info.get(index), 0);
+                    body(digest, pack.abc.findBody(index));
+                }
+                keys.put(pack, hex(digest));
+            } catch (RuntimeException e) {
+                // Left out of the cache
+            }
+        }
+        return keys;
+    }
+
+    // Adds the methods trait declares, and for a class its initializers and member traits
+    private static void collect(ABC abc, Trait trait, Set<Integer> methods, List<Object> traits) {
+        traits.add(trait);
+        if (trait instanceof TraitClass) {
+            int index = ((TraitClass) trait).class_info;
+            ClassInfo classInfo = abc.class_info.get(index);
+            InstanceInfo instanceInfo = abc.instance_info.get(index);
+            traits.add(classInfo);
+            traits.add(instanceInfo);
+            methods.add(classInfo.cinit_index);
+            methods.add(instanceInfo.iinit_index);
+            for (Trait member : classInfo.static_traits.traits) {
+                collect(abc, member, methods, traits);
+            }
+            for (Trait member : instanceInfo.instance_traits.traits) {
+                collect(abc, member, methods, traits);
+            }
+        } else if (trait instanceof TraitMethodGetterSetter) {
+            methods.add(((TraitMethodGetterSetter) trait).method_info);
+        } else if (trait instanceof TraitFunction) {
+            methods.add(((TraitFunction) trait).method_info);
+        }
+    }
+
+    // Hash of the constant pool and of the bodies no pack's traits reach
+    private static String shared(ABC abc, Set<Integer> reached) {
+        MessageDigest digest = sha256();
+        AVM2ConstantPool constants = abc.constants;
+        for (int i = 0; i < constants.getStringCount(); i++) {
+            text(digest, String.valueOf(constants.getString(i)));
+        }
+        for (int i = 0; i < constants.getIntCount(); i++) {
+            text(digest, String.valueOf(constants.getInt(i)));
+        }
+        for (int i = 0; i < constants.getUIntCount(); i++) {
+            text(digest, String.valueOf(constants.getUInt(i)));
+        }
+        for (int i = 0; i < constants.getDoubleCount(); i++) {
+            text(digest, String.valueOf(constants.getDouble(i)));
+        }
+        for (int i = 0; i < constants.getNamespaceCount(); i++) {
+            digest(digest, constants.getNamespace(i), 0);
+        }
+        for (int i = 0; i < constants.getNamespaceSetCount(); i++) {
+            digest(digest, constants.getNamespaceSet(i), 0);
+        }
+        for (int i = 0; i < constants.getMultinameCount(); i++) {
+            digest(digest, constants.getMultiname(i), 0);
+        }
+        for (MethodBody body : abc.bodies) {
+            if (!reached.contains(body.method_info)) {
+                text(digest, String.valueOf(body.method_info));
+                digest(digest, abc.method_info.get(body.method_info), 0);
+                body(digest, body);
+            }
+        }
+        return hex(digest);
+    }
+
+    private static void body(MessageDigest digest, MethodBody body) {
+        if (body == null) {
+            text(digest, "native");
+            return;
+        }
+        digest(digest, body, 0);
+        digest.update(body.getCodeBytes());
+    }
+
+    // Public instance fields of ABC structure types, sorted by name
+    private static final ClassValue<Field[]> FIELDS = new ClassValue<Field[]>() {
+        @Override
+        protected Field[] computeValue(Class<?> type) {
+            List<Field> fields = new ArrayList<>();
+            for (Field field : type.getFields()) {
+                if ((field.getModifiers() & (Modifier.STATIC | Modifier.TRANSIENT)) == 0) {
+                    fields.add(field);
+                }
+            }
+            fields.sort(Comparator.comparing(Field::getName));
+            return fields.toArray(new Field[0]);
+        }
+    };
+
+    // Feeds value to digest: values and arrays as text, lists element by element, and the ABC
+    // structure types (traits, infos, bodies, names) field by field. Anything else, such as a
+    // parsed AVM2Code, only contributes its type name.
+    private static void digest(MessageDigest digest, Object value, int depth) {
+        if (depth > 16) {
+            throw new IllegalStateException("ABC structure nested too deeply");
+        }
+        if (value == null || value instanceof Number || value instanceof Boolean || value instanceof Character
+                || value instanceof CharSequence || value instanceof Enum) {
+            text(digest, String.valueOf(value));
+        } else if (value instanceof int[]) {
+            text(digest, Arrays.toString((int[]) value));
+        } else if (value instanceof long[]) {
+            text(digest, Arrays.toString((long[]) value));
+        } else if (value instanceof byte[]) {
+            digest.update((byte[]) value);
+        } else if (value instanceof Object[]) {
+            for (Object element : (Object[]) value) {
+                digest(digest, element, depth + 1);
+            }
+        } else if (value instanceof Iterable) {
+            for (Object element : (Iterable<?>) value) {
+                digest(digest, element, depth + 1);
+            }
+        } else {
+            Class<?> type = value.getClass();
+            text(digest, type.getName());
+            if (!type.getName().startsWith("com.jpexs.decompiler.flash.abc.types.")) {
+                return;
+            }
+            for (Field field : FIELDS.get(type)) {
+                try {
+                    text(digest, field.getName());
+                    digest(digest, field.get(value), depth + 1);
+                } catch (IllegalAccessException e) {
+                    throw new IllegalStateException(e);
+                }
+            }
+        }
+    }
+
+    // Text with a terminator, so adjacent values can't run together
+    private static void text(MessageDigest digest, String text) {
+        digest.update(text.getBytes(StandardCharsets.UTF_8));
+        digest.update((byte) 0);
+    }
+
+    private static MessageDigest sha256() {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new LuaError("Error hashing ABC: " + e.getMessage());
+        }
+    }
+
+    private static String hex(MessageDigest digest) {
+        StringBuilder hex = new StringBuilder();
+        for (byte b : digest.digest()) {
+            hex.append(String.format("%02x", b));
+        }
+        return hex.toString();
+    }
+}
@@ -0,0 +1,347 @@
+import org.luaj.vm2.*;
+import java.io.*;
+import java.net.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicLong;
+
+// Resident mode: keeps one warm JVM (loaded JPEXS classes, JIT-compiled code, ClassBinding
+// and overload caches, compiled scripts, idle parsed SWFs) and runs scripts sent by the thin
+// client over a loopback socket. Every request still gets fresh Globals, so scripts cannot
+// leak state into each other.
+//
+// Any local user can connect to the port, so the server writes a random token to
+// ~/.yajml/server-<port>.token, readable only by its owner, and refuses requests without it.
+// Scripts run relative to the client's working directory: the script path, arguments naming
+// existing files, require() and the jpexs file functions resolve against it. Lua's io library
+// still uses the server's directory.
+//
+// Protocol, one request per connection, UTF-8 lines:
+//   client: RUN<TAB>token<TAB>cwd<TAB>script<TAB>arg1<TAB>...   |   STATUS<TAB>token   |   STOP<TAB>token
+//   server: "O <text>" for each line the script prints, then "DONE <OK|FAILED> <micros> [error]"
+final class ScriptServer {
+    static final int DEFAULT_PORT = 47411;
+
+    private final ServerSocket socket;
+    private final ExecutorService workers;
+    private final byte[] token;
+    private final long started = System.nanoTime();
+    private final AtomicLong requests = new AtomicLong();
+    private final AtomicLong failures = new AtomicLong();
+    private final AtomicLong totalMicros = new AtomicLong();
+    private final AtomicLong maxMicros = new AtomicLong();
+
+    private ScriptServer(int port, int threads, String token) throws IOException {
+        socket = new ServerSocket(port, 50, InetAddress.getLoopbackAddress());
+        workers = Executors.newFixedThreadPool(threads);
+        this.token = token.getBytes(StandardCharsets.UTF_8);
+    }
+
+    private static Path tokenFile(int port) {
+        return Paths.get(System.getProperty("user.home"), ".yajml", "server-" + port + ".token");
+    }
+
+    // A fresh random token in a file only the current user can read
+    private static String writeToken(Path file) throws IOException {
+        byte[] bytes = new byte[32];
+        new SecureRandom().nextBytes(bytes);
+        StringBuilder token = new StringBuilder();
+        for (byte b : bytes) {
+            token.append(String.format("%02x", b));
+        }
+
+        Files.createDirectories(file.getParent());
+        Files.deleteIfExists(file);
+        try {
+            Files.createFile(file, PosixFilePermissions.asFileAttribute(PosixFilePermissions.fromString("rw-------")));
+        } catch (UnsupportedOperationException e) {
+            // Not a POSIX file system
+            Files.createFile(file);
+            File f = file.toFile();
+            f.setReadable(false, false);
+            f.setWritable(false, false);
+            f.setReadable(true, true);
+            f.setWritable(true, true);
+        }
+        Files.write(file, token.toString().getBytes(StandardCharsets.UTF_8));
+        return token.toString();
+    }
+
+    // serve [--port N] [--threads N]
+    static int serve(String[] args) {
+        int port = DEFAULT_PORT;
+        int threads = Runtime.getRuntime().availableProcessors();
+        for (int i = 0; i + 1 < args.length; i += 2) {
+            if (args[i].equals("--port")) {
+                port = Integer.parseInt(args[i + 1]);
+            } else if (args[i].equals("--threads")) {
+                threads = Math.max(1, Integer.parseInt(args[i + 1]));
+            }
+        }
+
+        // Load JPEXS and build the eager bindings before the first request arrives
+        long warmup = System.nanoTime();
+        Main.createGlobals();
+        System.out.println(String.format("Warmed up in %.1f ms", (System.nanoTime() - warmup) / 1e6));
+
+        Path tokenFile = tokenFile(port);
+        try {
+            ScriptServer server = new ScriptServer(port, threads, writeToken(tokenFile));
+            System.out.println("Listening on " + server.socket.getLocalSocketAddress() + ", token in " + tokenFile);
+            server.acceptLoop();
+            return 0;
+        } catch (IOException e) {
+            System.err.println("Server error: " + e.getMessage());
+            return 1;
+        } finally {
+            try {
+                Files.deleteIfExists(tokenFile);
+            } catch (IOException e) {
+                System.err.println("Could not delete " + tokenFile + ": " + e.getMessage());
+            }
+        }
+    }
+
+    // run [--port N] script.lua [args...]   or   run [--port N] --status | --stop
+    static int client(String[] args) {
+        int port = DEFAULT_PORT;
+        int first = 0;
+        if (args.length > 1 && args[0].equals("--port")) {
+            port = Integer.parseInt(args[1]);
+            first = 2;
+        }
+        if (first >= args.length) {
+            System.err.println("Usage: run [--port N] (script.lua [args...] | --status | --stop)");
+            return 2;
+        }
+
+        String token;
+        try {
+            token = new String(Files.readAllBytes(tokenFile(port)), StandardCharsets.UTF_8).trim();
+        } catch (IOException e) {
+            System.err.println("No server token at " + tokenFile(port) + " (start a server with: serve)");
+            return 1;
+        }
+
+        String request;
+        if (args[first].equals("--status")) {
+            request = "STATUS\t" + token;
+        } else if (args[first].equals("--stop")) {
+            request = "STOP\t" + token;
+        } else {
+            StringJoiner joiner = new StringJoiner("\t", "RUN\t", "");
+            joiner.add(token);
+            // The server has its own working directory, so relative paths are resolved against ours
+            String cwd = Paths.get("").toAbsolutePath().toString();
+            if (cwd.indexOf('\t') >= 0 || cwd.indexOf('\n') >= 0) {
+                System.err.println("The working directory may not contain tabs or newlines");
+                return 2;
+            }
+            joiner.add(cwd);
+            for (int i = first; i < args.length; i++) {
+                if (args[i].indexOf('\t') >= 0 || args[i].indexOf('\n') >= 0) {
+                    System.err.println("Arguments may not contain tabs or newlines");
+                    return 2;
+                }
+                joiner.add(args[i]);
+            }
+            request = joiner.toString();
+        }
+
+        try (Socket connection = new Socket(InetAddress.getLoopbackAddress(), port)) {
+            Writer out = new OutputStreamWriter(connection.getOutputStream(), StandardCharsets.UTF_8);
+            out.write(request + "\n");
+            out.flush();
+
+            BufferedReader in = new BufferedReader(new InputStreamReader(connection.getInputStream(), StandardCharsets.UTF_8));
+            String line;
+            while ((line = in.readLine()) != null) {
+                if (line.startsWith("O ")) {
+                    System.out.println(line.substring(2));
+                } else if (line.startsWith("DONE ")) {
+                    String[] parts = line.split(" ", 4);
+                    if (parts.length > 3) {
+                        System.err.println(parts[3]);
+                    }
+                    if (request.startsWith("RUN\t")) {
+                        System.err.println(String.format("[%s in %.1f ms]", parts[1], Long.parseLong(parts[2]) / 1e3));
+                    }
+                    return parts[1].equals("OK") ? 0 : 1;
+                } else {
+                    System.out.println(line);
+                }
+            }
+            return 0;
+        } catch (ConnectException e) {
+            System.err.println("No server listening on port " + port + " (start one with: serve)");
+            return 1;
+        } catch (IOException e) {
+            System.err.println("Client error: " + e.getMessage());
+            return 1;
+        }
+    }
+
+    private void acceptLoop() throws IOException {
+        try {
+            while (!socket.isClosed()) {
+                Socket connection;
+                try {
+                    connection = socket.accept();
+                } catch (SocketException e) {
+                    // Closed by STOP
+                    break;
+                }
+                workers.execute(() -> handle(connection));
+            }
+        } finally {
+            workers.shutdown();
+        }
+    }
+
+    private void handle(Socket connection) {
+        try (Socket c = connection) {
+            BufferedReader in = new BufferedReader(new InputStreamReader(c.getInputStream(), StandardCharsets.UTF_8));
+            OutputStream out = new BufferedOutputStream(c.getOutputStream());
+            String request = in.readLine();
+            if (request == null) {
+                return;
+            }
+
+            String[] parts = request.split("\t", -1);
+            if (parts.length < 2 || !MessageDigest.isEqual(token, parts[1].getBytes(StandardCharsets.UTF_8))) {
+                out.write("DONE FAILED 0 Missing or wrong server token\n".getBytes(StandardCharsets.UTF_8));
+            } else if (parts[0].equals("STATUS")) {
+                out.write(status().getBytes(StandardCharsets.UTF_8));
+            } else if (parts[0].equals("STOP")) {
+                out.write("Stopping\n".getBytes(StandardCharsets.UTF_8));
+                out.flush();
+                socket.close();
+            } else if (parts[0].equals("RUN") && parts.length >= 4) {
+                run(Paths.get(parts[2]), parts[3], Arrays.copyOfRange(parts, 4, parts.length), out);
+            } else {
+                out.write(("DONE FAILED 0 Unknown request: " + parts[0] + "\n").getBytes(StandardCharsets.UTF_8));
+            }
+            out.flush();
+        } catch (IOException e) {
+            System.err.println("Connection error: " + e.getMessage());
+        }
+    }
+
+    private void run(Path cwd, String script, String[] scriptArgs, OutputStream out) throws IOException {
+        long start = System.nanoTime();
+        String error = null;
+        FramedOutputStream framed = new FramedOutputStream(out);
+        PrintStream print = new PrintStream(framed, false, "UTF-8");
+
+        Main.jpexsAutoLib lib = null;
+        try {
+            lib = Main.createLibrary();
+            lib.directory(cwd);
+            Globals globals = lib.globals();
+            globals.STDOUT = print;
+            LuaValue packages = globals.get("package");
+            packages.set("path", cwd.resolve("?.lua") + ";" + packages.get("path").tojstring());
+
+            LuaValue[] values = new LuaValue[scriptArgs.length];
+            LuaTable arg = new LuaTable();
+            arg.set(0, LuaValue.valueOf(lib.resolve(script)));
+            for (int i = 0; i < scriptArgs.length; i++) {
+                values[i] = LuaValue.valueOf(argument(cwd, scriptArgs[i]));
+                arg.set(i + 1, values[i]);
+            }
+            globals.set("arg", arg);
+
+            globals.loadfile(lib.resolve(script)).invoke(LuaValue.varargsOf(values));
+        } catch (LuaError e) {
+            error = e.getMessage();
+        } catch (Exception e) {
+            error = e.toString();
+        } finally {
+            // Untouched SWFs stay parsed for the next request
+            if (lib != null) {
+                lib.release();
+            }
+        }
+        print.flush();
+        framed.endLine();
+
+        long micros = (System.nanoTime() - start) / 1000;
+        record(micros, error == null);
+        String done = "DONE " + (error == null ? "OK" : "FAILED") + " " + micros
+                + (error == null ? "" : " " + error.replace('\n', ' '));
+        out.write((done + "\n").getBytes(StandardCharsets.UTF_8));
+        System.out.println(String.format("%s %s %.1f ms", error == null ? "OK    " : "FAILED", script, micros / 1e3));
+    }
+
+    // An argument naming an existing file relative to the client's directory, made absolute;
+    // anything else as sent
+    private static String argument(Path cwd, String value) {
+        try {
+            Path path = Paths.get(value);
+            if (!value.isEmpty() && !path.isAbsolute() && Files.exists(cwd.resolve(path))) {
+                return cwd.resolve(path).normalize().toString();
+            }
+        } catch (InvalidPathException e) {
+            // Not a path
+        }
+        return value;
+    }
+
+    private void record(long micros, boolean ok) {
+        requests.incrementAndGet();
+        if (!ok) {
+            failures.incrementAndGet();
+        }
+        totalMicros.addAndGet(micros);
+        maxMicros.accumulateAndGet(micros, Math::max);
+    }
+
+    private String status() {
+        long count = requests.get();
+        return String.format("O uptime %.1f s, %d requests, %d failed, mean %.1f ms, max %.1f ms%nO %s%nO %s%nDONE OK 0%n",
+                (System.nanoTime() - started) / 1e9, count, failures.get(),
+                count == 0 ? 0 : totalMicros.get() / 1e3 / count, maxMicros.get() / 1e3,
+                ScriptCache.report(), SwfCache.report());
+    }
+
+    // Prefixes every line written by the script with "O " so it can't be mistaken for the DONE line
+    private static final class FramedOutputStream extends OutputStream {
+        private final OutputStream out;
+        private boolean lineStart = true;
+
+        FramedOutputStream(OutputStream out) {
+            this.out = out;
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            if (lineStart) {
+                out.write('O');
+                out.write(' ');
+                lineStart = false;
+            }
+            out.write(b);
+            if (b == '\n') {
+                lineStart = true;
+                out.flush();
+            }
+        }
+
+        @Override
+        public void flush() throws IOException {
+            out.flush();
+        }
+
+        // Terminate a partial last line so the DONE line starts on its own
+        void endLine() throws IOException {
+            if (!lineStart) {
+                write('\n');
+            }
+        }
+    }
+}
@@ -0,0 +1,251 @@
+import com.jpexs.decompiler.flash.SWF;
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.file.*;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.*;
+
+// Process-wide cache of parsed SWFs for openSWF. A parsed SWF is handed to one script at a
+// time: opening checks an idle copy out of the cache (or parses a new one), and releasing
+// returns it only if the script left it untouched, so a mod never sees another mod's edits.
+// Entries are keyed by path, size, mtime and a SHA-256 of the content, and evicted in LRU
+// order once their estimated heap size exceeds the budget.
+//
+// System properties:
+//   yajml.swfCache.mb  budget for idle parsed SWFs in MiB (default 256, 0 disables reuse)
+//   yajml.mmap         "false" to read files into the heap instead of mapping them; off by
+//                      default on Windows, where a mapped file cannot be overwritten until GC
+final class SwfCache {
+    private static final long MAX_BYTES = Long.getLong("yajml.swfCache.mb", 256) * 1024 * 1024;
+    private static final boolean MMAP = Boolean.parseBoolean(System.getProperty("yajml.mmap",
+            String.valueOf(!System.getProperty("os.name", "").startsWith("Windows"))));
+    // Rough heap footprint of a parsed SWF relative to its uncompressed size
+    private static final int PARSED_SIZE_FACTOR = 4;
+
+    private static final LinkedHashMap<Key, Handle> idle = new LinkedHashMap<>(16, 0.75f, true);
+    private static long idleBytes;
+    private static long hits;
+    private static long misses;
+
+    private SwfCache() {
+    }
+
+    // Identity of one version of one file
+    private static final class Key {
+        final String path;
+        final long size;
+        final long modified;
+        final String hash;
+
+        Key(String path, long size, long modified, String hash) {
+            this.path = path;
+            this.size = size;
+            this.modified = modified;
+            this.hash = hash;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof Key)) {
+                return false;
+            }
+            Key other = (Key) o;
+            return size == other.size && modified == other.modified && path.equals(other.path) && hash.equals(other.hash);
+        }
+
+        @Override
+        public int hashCode() {
+            return hash.hashCode();
+        }
+    }
+
+    // Content hash of one file version, so a caller that already hashed a file (the build cache)
+    // can hand the hash to open instead of having it computed twice
+    static final class Digest {
+        final long size;
+        final long modified;
+        final String hash;
+
+        private Digest(long size, long modified, String hash) {
+            this.size = size;
+            this.modified = modified;
+            this.hash = hash;
+        }
+    }
+
+    // Hash a file without reading it into memory
+    static Digest digest(Path path) throws IOException {
+        long modified = Files.getLastModifiedTime(path).toMillis();
+        try (InputStream in = Files.newInputStream(path)) {
+            MessageDigest digest = MessageDigest.getInstance("SHA-256");
+            byte[] buffer = new byte[1 << 16];
+            long size = 0;
+            int n;
+            while ((n = in.read(buffer)) > 0) {
+                digest.update(buffer, 0, n);
+                size += n;
+            }
+            return new Digest(size, modified, hex(digest.digest()));
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    // A parsed SWF checked out to one script
+    static final class Handle {
+        final SWF swf;
+        // Null for a SWF parsed without the cache, which is never kept
+        private final Key key;
+        private final long cost;
+
+        private Handle(Key key, SWF swf, long cost) {
+            this.key = key;
+            this.swf = swf;
+            this.cost = cost;
+        }
+    }
+
+    static Handle open(String filePath) throws IOException, InterruptedException {
+        return open(filePath, null);
+    }
+
+    // open, reusing known when it still matches the file's size and modification time
+    static Handle open(String filePath, Digest known) throws IOException, InterruptedException {
+        Path path = Paths.get(filePath).toAbsolutePath().normalize();
+
+        ByteBuffer content;
+        long modified;
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            // Nothing to look up without a cache, and a buffer can't hold 2 GiB or more: parse
+            // straight from the file, and don't keep the result
+            if (MAX_BYTES <= 0 || channel.size() > Integer.MAX_VALUE) {
+                try (InputStream in = new BufferedInputStream(Channels.newInputStream(channel), 1 << 16)) {
+                    return new Handle(null, new SWF(in, true), 0);
+                }
+            }
+            modified = Files.getLastModifiedTime(path).toMillis();
+            content = read(channel);
+        }
+        String hash = known != null && known.size == content.remaining() && known.modified == modified
+                ? known.hash : sha256(content.duplicate());
+        Key key = new Key(path.toString(), content.remaining(), modified, hash);
+
+        synchronized (SwfCache.class) {
+            Handle cached = idle.remove(key);
+            if (cached != null) {
+                idleBytes -= cached.cost;
+                hits++;
+                return cached;
+            }
+            misses++;
+        }
+
+        SWF swf = new SWF(new BufferInputStream(content.duplicate()), true);
+        return new Handle(key, swf, PARSED_SIZE_FACTOR * uncompressedSize(content));
+    }
+
+    // Give a handle back; only clean SWFs are kept, and only one idle copy per file version
+    static void release(Handle handle, boolean clean) {
+        if (!clean || handle.key == null || MAX_BYTES <= 0 || handle.cost > MAX_BYTES) {
+            return;
+        }
+        synchronized (SwfCache.class) {
+            if (idle.containsKey(handle.key)) {
+                return;
+            }
+            idle.put(handle.key, handle);
+            idleBytes += handle.cost;
+
+            Iterator<Handle> eldest = idle.values().iterator();
+            while (idleBytes > MAX_BYTES && eldest.hasNext()) {
+                idleBytes -= eldest.next().cost;
+                eldest.remove();
+            }
+        }
+    }
+
+    static synchronized String report() {
+        return String.format("SWF cache: %d hits, %d misses, %d idle (~%d MiB)", hits, misses, idle.size(), idleBytes >> 20);
+    }
+
+    private static ByteBuffer read(FileChannel channel) throws IOException {
+        long size = channel.size();
+        if (MMAP) {
+            return channel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+        }
+        ByteBuffer buffer = ByteBuffer.allocate((int) size);
+        while (buffer.hasRemaining() && channel.read(buffer) >= 0) {
+            // keep reading
+        }
+        buffer.flip();
+        return buffer;
+    }
+
+    // Uncompressed length from the SWF header, falling back to the file size
+    private static long uncompressedSize(ByteBuffer content) {
+        int p = content.position();
+        if (content.remaining() < 8 || content.get(p + 1) != 'W' || content.get(p + 2) != 'S') {
+            return content.remaining();
+        }
+        long length = (content.get(p + 4) & 0xFFL) | (content.get(p + 5) & 0xFFL) << 8
+                | (content.get(p + 6) & 0xFFL) << 16 | (content.get(p + 7) & 0xFFL) << 24;
+        return Math.max(length, content.remaining());
+    }
+
+    private static String sha256(ByteBuffer content) {
+        try {
+            MessageDigest digest = MessageDigest.getInstance("SHA-256");
+            digest.update(content);
+            return hex(digest.digest());
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static String hex(byte[] bytes) {
+        StringBuilder hex = new StringBuilder();
+        for (byte b : bytes) {
+            hex.append(String.format("%02x", b));
+        }
+        return hex.toString();
+    }
+
+    // InputStream over a (possibly mapped) buffer, so parsing reads memory instead of the file
+    private static final class BufferInputStream extends InputStream {
+        private final ByteBuffer buffer;
+
+        BufferInputStream(ByteBuffer buffer) {
+            this.buffer = buffer;
+        }
+
+        @Override
+        public int read() {
+            return buffer.hasRemaining() ? buffer.get() & 0xFF : -1;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) {
+            if (!buffer.hasRemaining()) {
+                return -1;
+            }
+            int n = Math.min(len, buffer.remaining());
+            buffer.get(b, off, n);
+            return n;
+        }
+
+        @Override
+        public int available() {
+            return buffer.remaining();
+        }
+
+        @Override
+        public long skip(long n) {
+            int skipped = (int) Math.max(0, Math.min(n, buffer.remaining()));
+            buffer.position(buffer.position() + skipped);
+            return skipped;
+        }
+    }
+}
@@ -0,0 +1,114 @@
+import org.luaj.vm2.*;
+import java.io.*;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.file.*;
+import com.jpexs.decompiler.flash.SWF;
+import com.jpexs.decompiler.flash.SWFCompression;
+import com.jpexs.decompiler.flash.tags.Tag;
+import com.jpexs.decompiler.flash.timeline.Timelined;
+
+// jpexs.saveSWF: writes a SWF through a FileChannel with a chosen compression level.
+// JPEXS copies the original bytes of every tag that is not marked modified, and the bridge
+// marks a tag modified whenever a script writes to something reached from it, so only the
+// tags a script actually touched are re-serialized. The body is then compressed here while
+// JPEXS streams it, instead of JPEXS buffering and compressing the whole file again.
+final class SwfWriter {
+    private static final int BUFFER_SIZE = 1 << 16;
+
+    private SwfWriter() {
+    }
+
+    // saveSWF(swf, path [, {compression = "none" | "zlib" | "lzma", level = 0..9}])
+    //   -> {tags, modified, bytes, millis}
+    // Defaults to the SWF's own compression at level 6; "none" is the fast mode for development.
+    static LuaValue save(SWF swf, String path, LuaValue options) {
+        long start = System.nanoTime();
+        LuaTable opts = options.istable() ? options.checktable() : new LuaTable();
+        String compression = opts.get("compression").optjstring(defaultCompression(swf.compression));
+        int level = opts.get("level").optint(6);
+        if (level < 0 || level > 9) {
+            throw new LuaError("Compression level must be 0-9, got " + level);
+        }
+
+        int tags = 0;
+        int modified = 0;
+        for (Tag tag : swf.getTags()) {
+            tags++;
+            if (tag.isModified()) {
+                modified++;
+            }
+        }
+
+        Path target = Paths.get(path).toAbsolutePath();
+        SWFCompression original = swf.compression;
+        try {
+            Path parent = target.getParent();
+            Files.createDirectories(parent);
+            // Not createTempFile, which would leave the saved SWF readable only by its owner
+            Path temp = parent.resolve(target.getFileName() + "." + Long.toHexString(System.nanoTime()) + ".tmp");
+            try {
+                try (FileChannel channel = FileChannel.open(temp, StandardOpenOption.WRITE, StandardOpenOption.CREATE_NEW)) {
+                    OutputStream out = new BufferedOutputStream(Channels.newOutputStream(channel), BUFFER_SIZE);
+                    switch (compression) {
+                        case "none":
+                            swf.compression = SWFCompression.NONE;
+                            swf.saveTo(out);
+                            break;
+                        case "zlib":
+                            swf.compression = SWFCompression.NONE;
+                            try (ZlibBodyOutputStream zlib = new ZlibBodyOutputStream(out, level, BUFFER_SIZE)) {
+                                swf.saveTo(zlib);
+                            }
+                            break;
+                        case "lzma":
+                            // No streaming LZMA in the JDK; JPEXS does this one itself
+                            swf.compression = SWFCompression.LZMA;
+                            swf.saveTo(out);
+                            break;
+                        default:
+                            throw new LuaError("Unknown compression: " + compression + " (expected none, zlib or lzma)");
+                    }
+                    out.flush();
+                }
+                Files.move(temp, target, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            } finally {
+                Files.deleteIfExists(temp);
+            }
+
+            LuaTable report = new LuaTable();
+            report.set("tags", tags);
+            report.set("modified", modified);
+            report.set("bytes", (double) Files.size(target));
+            report.set("millis", (System.nanoTime() - start) / 1e6);
+            return report;
+        } catch (IOException | RuntimeException e) {
+            throw Main.jpexsAutoLib.bridgeError("Error saving SWF: ", e);
+        } finally {
+            swf.compression = original;
+        }
+    }
+
+    // The option name for a SWF's own compression
+    private static String defaultCompression(SWFCompression compression) {
+        switch (compression) {
+            case NONE:
+                return "none";
+            case LZMA:
+                return "lzma";
+            default:
+                return "zlib";
+        }
+    }
+
+    // Mark every tag, including those inside sprites, modified so saving re-serializes all of them;
+    // for SWFs edited through objects the bridge couldn't trace back to a tag
+    static void markAllModified(Timelined timelined) {
+        for (Tag tag : timelined.getTags()) {
+            tag.setModified(true);
+            if (tag instanceof Timelined) {
+                markAllModified((Timelined) tag);
+            }
+        }
+    }
+}
@@ -0,0 +1,161 @@
+import org.luaj.vm2.*;
+import org.luaj.vm2.lib.*;
+import java.util.*;
+import java.util.function.Predicate;
+import com.jpexs.decompiler.flash.tags.Tag;
+import com.jpexs.decompiler.flash.tags.base.CharacterTag;
+import com.jpexs.decompiler.flash.timeline.Timelined;
+
+// Tag queries for SWFs and sprites, filtered in Java so Lua only wraps the tags it asked for:
+//   for tag in swf:iterTags{type = "DoABC2"} do ... end
+//   swf:countTags{type = {"DefineSprite", "DefineShape"}}
+//   swf:findTag{id = 12}
+// Filter keys (all optional, combined with and): type = tag class name with or without the
+// "Tag" suffix, or a list of them; id = character ID; class = linked AS class name;
+// recursive = true to descend into sprites. Removing tags while iterating is not supported.
+final class TagIterators {
+    private TagIterators() {
+    }
+
+    // Add iterTags, countTags and findTag to the metatable of a Timelined class
+    static void install(Main.jpexsAutoLib lib, LuaTable mt) {
+        LuaValue members = mt.rawget(LuaValue.INDEX);
+        LuaTable methods = new LuaTable();
+
+        methods.set("iterTags", new TwoArgFunction() {
+            @Override
+            public LuaValue call(LuaValue self, LuaValue filter) {
+                Iterator<Tag> tags = matching(check(self), filter);
+                return new ZeroArgFunction() {
+                    @Override
+                    public LuaValue call() {
+                        return tags.hasNext() ? lib.wrapObject(tags.next()) : LuaValue.NIL;
+                    }
+                };
+            }
+        });
+
+        methods.set("countTags", new TwoArgFunction() {
+            @Override
+            public LuaValue call(LuaValue self, LuaValue filter) {
+                Iterator<Tag> tags = matching(check(self), filter);
+                int count = 0;
+                while (tags.hasNext()) {
+                    tags.next();
+                    count++;
+                }
+                return LuaValue.valueOf(count);
+            }
+        });
+
+        methods.set("findTag", new TwoArgFunction() {
+            @Override
+            public LuaValue call(LuaValue self, LuaValue filter) {
+                Iterator<Tag> tags = matching(check(self), filter);
+                return tags.hasNext() ? lib.wrapObject(tags.next()) : LuaValue.NIL;
+            }
+        });
+
+        mt.set(LuaValue.INDEX, new TwoArgFunction() {
+            @Override
+            public LuaValue call(LuaValue self, LuaValue key) {
+                LuaValue method = methods.rawget(key);
+                return method.isnil() ? members.call(self, key) : method;
+            }
+        });
+    }
+
+    private static Timelined check(LuaValue self) {
+        Object obj = self.touserdata();
+        if (!(obj instanceof Timelined)) {
+            throw new LuaError("Expected a SWF or sprite; call tag queries with colon syntax (swf:iterTags{...})");
+        }
+        return (Timelined) obj;
+    }
+
+    private static Iterator<Tag> matching(Timelined timelined, LuaValue filter) {
+        LuaTable options = filter.isnil() ? new LuaTable() : filter.checktable();
+        Predicate<Tag> predicate = predicate(options);
+        boolean recursive = options.get("recursive").toboolean();
+        return new FilteringIterator(timelined, predicate, recursive);
+    }
+
+    // Compile the filter table into one Java predicate, evaluated without touching Lua
+    private static Predicate<Tag> predicate(LuaTable options) {
+        Predicate<Tag> predicate = tag -> true;
+
+        LuaValue type = options.get("type");
+        if (!type.isnil()) {
+            Set<String> names = new HashSet<>();
+            if (type.istable()) {
+                for (int i = 1; i <= type.length(); i++) {
+                    names.add(normalizeType(type.get(i).checkjstring()));
+                }
+            } else {
+                names.add(normalizeType(type.checkjstring()));
+            }
+            predicate = predicate.and(tag -> names.contains(normalizeType(tag.getClass().getSimpleName())));
+        }
+
+        LuaValue id = options.get("id");
+        if (!id.isnil()) {
+            int characterId = id.checkint();
+            predicate = predicate.and(tag -> tag instanceof CharacterTag && ((CharacterTag) tag).getCharacterId() == characterId);
+        }
+
+        LuaValue className = options.get("class");
+        if (!className.isnil()) {
+            String name = className.checkjstring();
+            predicate = predicate.and(tag -> tag instanceof CharacterTag && ((CharacterTag) tag).getClassNames().contains(name));
+        }
+
+        return predicate;
+    }
+
+    private static String normalizeType(String name) {
+        return name.endsWith("Tag") ? name.substring(0, name.length() - 3) : name;
+    }
+
+    // Depth-first walk over a timeline, optionally descending into nested timelines
+    private static final class FilteringIterator implements Iterator<Tag> {
+        private final Deque<Iterator<Tag>> stack = new ArrayDeque<>();
+        private final Predicate<Tag> predicate;
+        private final boolean recursive;
+        private Tag next;
+
+        FilteringIterator(Timelined root, Predicate<Tag> predicate, boolean recursive) {
+            this.predicate = predicate;
+            this.recursive = recursive;
+            stack.push(root.getTags().iterator());
+        }
+
+        @Override
+        public boolean hasNext() {
+            while (next == null && !stack.isEmpty()) {
+                Iterator<Tag> top = stack.peek();
+                if (!top.hasNext()) {
+                    stack.pop();
+                    continue;
+                }
+                Tag tag = top.next();
+                if (recursive && tag instanceof Timelined) {
+                    stack.push(((Timelined) tag).getTags().iterator());
+                }
+                if (predicate.test(tag)) {
+                    next = tag;
+                }
+            }
+            return next != null;
+        }
+
+        @Override
+        public Tag next() {
+            if (!hasNext()) {
+                throw new NoSuchElementException();
+            }
+            Tag tag = next;
+            next = null;
+            return tag;
+        }
+    }
+}
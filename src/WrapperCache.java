@@ -0,0 +1,106 @@
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.WeakReference;
+
+// Identity map from Java objects to their Lua wrappers, so wrapping the same object twice
+// yields the same userdata. Entries hold the wrapper weakly and the wrapper holds the object,
+// so nothing here keeps either alive: once Lua drops a wrapper, its entry is purged.
+// Not thread-safe; each jpexsAutoLib owns one.
+final class WrapperCache {
+    private static final int INITIAL_CAPACITY = 256;
+
+    private Entry[] table = new Entry[INITIAL_CAPACITY];
+    private int size;
+    private long hits;
+    private long misses;
+    private final ReferenceQueue<Main.UserdataWithMeta> queue = new ReferenceQueue<>();
+
+    private static final class Entry extends WeakReference<Main.UserdataWithMeta> {
+        final int hash;
+        Entry next;
+
+        Entry(Main.UserdataWithMeta wrapper, int hash, Entry next, ReferenceQueue<Main.UserdataWithMeta> queue) {
+            super(wrapper, queue);
+            this.hash = hash;
+            this.next = next;
+        }
+    }
+
+    // Existing wrapper for the object, or null (counted as a miss)
+    Main.UserdataWithMeta get(Object obj) {
+        expunge();
+        int hash = System.identityHashCode(obj);
+        for (Entry e = table[hash & (table.length - 1)]; e != null; e = e.next) {
+            if (e.hash == hash) {
+                Main.UserdataWithMeta wrapper = e.get();
+                if (wrapper != null && wrapper.identity == obj) {
+                    hits++;
+                    return wrapper;
+                }
+            }
+        }
+        misses++;
+        return null;
+    }
+
+    void put(Main.UserdataWithMeta wrapper) {
+        int hash = System.identityHashCode(wrapper.identity);
+        int index = hash & (table.length - 1);
+        table[index] = new Entry(wrapper, hash, table[index], queue);
+        if (++size > table.length * 3 / 4) {
+            resize();
+        }
+    }
+
+    long hits() {
+        return hits;
+    }
+
+    long misses() {
+        return misses;
+    }
+
+    int size() {
+        expunge();
+        return size;
+    }
+
+    // Drop entries whose wrappers were collected
+    private void expunge() {
+        Object ref;
+        while ((ref = queue.poll()) != null) {
+            Entry dead = (Entry) ref;
+            int index = dead.hash & (table.length - 1);
+            Entry prev = null;
+            for (Entry e = table[index]; e != null; prev = e, e = e.next) {
+                if (e == dead) {
+                    if (prev == null) {
+                        table[index] = e.next;
+                    } else {
+                        prev.next = e.next;
+                    }
+                    size--;
+                    break;
+                }
+            }
+        }
+    }
+
+    private void resize() {
+        expunge();
+        if (size <= table.length * 3 / 4) {
+            return;
+        }
+        Entry[] old = table;
+        Entry[] grown = new Entry[old.length * 2];
+        for (Entry head : old) {
+            for (Entry e = head; e != null; ) {
+                Entry next = e.next;
+                int index = e.hash & (grown.length - 1);
+                e.next = grown[index];
+                grown[index] = e;
+                e = next;
+            }
+        }
+        table = grown;
+    }
+}
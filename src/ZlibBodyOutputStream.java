@@ -0,0 +1,48 @@
+import java.io.*;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+
+// Turns an uncompressed SWF stream ("FWS" header) into a zlib one ("CWS") on the fly: the
+// 8-byte header is copied with the signature changed, and everything after it is deflated.
+// The length field already holds the uncompressed size, which is what CWS expects.
+// Only uses java.*, since PatchApplier is shipped without the rest of the loader's dependencies.
+final class ZlibBodyOutputStream extends OutputStream {
+    private final OutputStream out;
+    private final Deflater deflater;
+    private final DeflaterOutputStream body;
+    private int headerBytes;
+
+    ZlibBodyOutputStream(OutputStream out, int level, int bufferSize) {
+        this.out = out;
+        this.deflater = new Deflater(level);
+        this.body = new DeflaterOutputStream(out, deflater, bufferSize);
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+        if (headerBytes < 8) {
+            out.write(headerBytes == 0 && b == 'F' ? 'C' : b);
+            headerBytes++;
+        } else {
+            body.write(b);
+        }
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+        while (headerBytes < 8 && len > 0) {
+            write(b[off++]);
+            len--;
+        }
+        if (len > 0) {
+            body.write(b, off, len);
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        body.finish();
+        deflater.end();
+        out.flush();
+    }
+}